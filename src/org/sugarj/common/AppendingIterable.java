@@ -1,10 +1,28 @@
 package org.sugarj.common;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AppendingIterable<T> implements Iterable<T> {
 
+  /**
+   * Action applied to each element by
+   * {@link AppendingIterable#parallelForEach}.
+   */
+  public static interface Consumer<T> {
+    public void accept(T t);
+  }
+
   private Iterable<? extends Iterable<T>> mainIterables;
   
   public AppendingIterable(Iterable<? extends Iterable<T>> mainIterables) {
@@ -17,4 +35,170 @@ public class AppendingIterable<T> implements Iterable<T> {
      return AppendingIterator.appendingIteratorFor(mainIterables.iterator());
   }
 
+  /**
+   * @return the number of elements if all appended iterables are
+   *         collections, or -1.
+   */
+  public long size() {
+    return size(mainIterables);
+  }
+
+  private static long size(Iterable<? extends Iterable<?>> iterables) {
+    long size = 0;
+    for (Iterable<?> it : iterables) {
+      if (!(it instanceof Collection))
+        return -1;
+      size += ((Collection<?>) it).size();
+    }
+    return size;
+  }
+
+  /**
+   * Splits the elements into at most the given number of non-empty parts
+   * that together contain all elements in order. If the size is known, the
+   * parts have about the same size: appended lists with random access are
+   * split into sublists, other collections stay whole. Otherwise, the
+   * appended iterables are distributed evenly.
+   * <p>
+   * The parts are views; the appended iterables must not change while the
+   * parts are used.
+   */
+  public List<AppendingIterable<T>> split(int parts) {
+    if (parts < 1)
+      throw new IllegalArgumentException("parts must be positive: " + parts);
+
+    List<Iterable<T>> inner = new ArrayList<>();
+    for (Iterable<T> it : mainIterables)
+      inner.add(it);
+
+    List<AppendingIterable<T>> result = new ArrayList<>(parts);
+    long size = size(inner);
+    if (size < 0) {
+      int n = inner.size();
+      for (int p = 0; p < parts; p++) {
+        int from = (int) ((long) n * p / parts);
+        int to = (int) ((long) n * (p + 1) / parts);
+        if (to > from)
+          result.add(new AppendingIterable<>(new ArrayList<>(inner.subList(from, to))));
+      }
+      return result;
+    }
+
+    long target = Math.max(1, (size + parts - 1) / parts);
+    List<Iterable<T>> current = new ArrayList<>();
+    long currentSize = 0;
+    for (Iterable<T> it : inner) {
+      int n = ((Collection<?>) it).size();
+      if (it instanceof List && it instanceof RandomAccess) {
+        List<T> list = (List<T>) it;
+        int start = 0;
+        while (start < n) {
+          int take = (int) Math.min(n - start, target - currentSize);
+          current.add(list.subList(start, start + take));
+          start += take;
+          currentSize += take;
+          if (currentSize >= target) {
+            result.add(new AppendingIterable<>(current));
+            current = new ArrayList<>();
+            currentSize = 0;
+          }
+        }
+      }
+      else if (n > 0) {
+        current.add(it);
+        currentSize += n;
+        if (currentSize >= target) {
+          result.add(new AppendingIterable<>(current));
+          current = new ArrayList<>();
+          currentSize = 0;
+        }
+      }
+    }
+    if (currentSize > 0)
+      result.add(new AppendingIterable<>(current));
+    return result;
+  }
+
+  /**
+   * Applies the consumer to all elements, one {@link #split(int) part} per
+   * available processor. The first part runs in the calling thread, the
+   * others in the executor. The first exception thrown by the consumer is
+   * rethrown after all started parts ended; parts that did not start yet are
+   * skipped, running parts are interrupted. If the calling thread is
+   * interrupted, all parts are cancelled and the method returns without
+   * waiting for them.
+   */
+  public void parallelForEach(Consumer<? super T> consumer, ExecutorService executor) throws InterruptedException {
+    parallelForEach(consumer, executor, Runtime.getRuntime().availableProcessors());
+  }
+
+  public void parallelForEach(final Consumer<? super T> consumer, ExecutorService executor, int parts) throws InterruptedException {
+    List<AppendingIterable<T>> split = split(parts);
+    if (split.isEmpty())
+      return;
+
+    // counted down when a part ended or was skipped before it started
+    final CountDownLatch done = new CountDownLatch(split.size() - 1);
+    List<AtomicBoolean> claims = new ArrayList<>(split.size() - 1);
+    List<Future<?>> futures = new ArrayList<>(split.size() - 1);
+    for (final AppendingIterable<T> part : split.subList(1, split.size())) {
+      final AtomicBoolean claimed = new AtomicBoolean();
+      claims.add(claimed);
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (!claimed.compareAndSet(false, true))
+            return;
+          try {
+            for (T t : part)
+              consumer.accept(t);
+          } finally {
+            done.countDown();
+          }
+        }
+      }));
+    }
+
+    Throwable failure = null;
+    try {
+      for (T t : split.get(0))
+        consumer.accept(t);
+    } catch (RuntimeException | Error e) {
+      failure = e;
+    }
+
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        if (failure != null)
+          cancel(futures.get(i), claims.get(i), done);
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          if (failure == null)
+            failure = e.getCause();
+        } catch (CancellationException e) {
+        }
+      }
+      done.await();
+    } catch (InterruptedException e) {
+      for (int i = 0; i < futures.size(); i++)
+        cancel(futures.get(i), claims.get(i), done);
+      throw e;
+    }
+
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+    if (failure != null)
+      throw new RuntimeException(failure);
+  }
+
+  private static void cancel(Future<?> future, AtomicBoolean claimed, CountDownLatch done) {
+    future.cancel(true);
+    // a part that did not start yet never counts down itself
+    if (claimed.compareAndSet(false, true))
+      done.countDown();
+  }
+
 }
@@ -1,6 +1,7 @@
 package org.sugarj.common;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
 public class AppendingIterator<T,E> implements Iterator<E> {
@@ -9,6 +10,12 @@ public class AppendingIterator<T,E> implements Iterator<E> {
   private Iterator<E> currentIterator;
   private IteratorExtractor<T, E> iteratorExtractor;
 
+  /**
+   * Whether hasNext found an element in the current iterator that next has
+   * not returned yet.
+   */
+  private boolean ready;
+
   public static interface IteratorExtractor<T, E> {
     public Iterator<E> getIterator(T t);
   }
@@ -42,13 +49,16 @@ public class AppendingIterator<T,E> implements Iterator<E> {
 
   @Override
   public boolean hasNext() {
-    if (this.currentIterator != null && this.currentIterator.hasNext()) {
+    if (this.ready) {
       return true;
     }
+    if (this.currentIterator != null && this.currentIterator.hasNext()) {
+      return this.ready = true;
+    }
     while (this.mainIterator.hasNext()) {
       this.currentIterator = this.iteratorExtractor.getIterator(this.mainIterator.next());
       if (this.currentIterator.hasNext()) {
-        return true;
+        return this.ready = true;
       }
     }
     return false;
@@ -56,12 +66,11 @@ public class AppendingIterator<T,E> implements Iterator<E> {
 
   @Override
   public E next() {
-    if (this.currentIterator.hasNext()) {
-      return this.currentIterator.next();
-    } else {
-      this.currentIterator = this.iteratorExtractor.getIterator(this.mainIterator.next());
-      return this.currentIterator.next();
+    if (!hasNext()) {
+      throw new NoSuchElementException();
     }
+    this.ready = false;
+    return this.currentIterator.next();
   }
   
   @Override
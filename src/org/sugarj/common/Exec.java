@@ -2,20 +2,36 @@ package org.sugarj.common;
 
 import static org.sugarj.common.Log.log;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.sugarj.common.exec.AdaptiveProcessSlots;
+import org.sugarj.common.exec.BatchExec;
+import org.sugarj.common.exec.ExecInput;
+import org.sugarj.common.exec.ExecMetricsRegistry;
+import org.sugarj.common.exec.ExecutionMetrics;
+import org.sugarj.common.exec.InProcessJava;
+import org.sugarj.common.exec.Jobserver;
+import org.sugarj.common.exec.OutputLines;
+import org.sugarj.common.exec.ProcessSlots;
+import org.sugarj.common.exec.SingleFlight;
+import org.sugarj.common.util.ProcessUtils;
 
 
 /**
@@ -78,16 +94,96 @@ public class Exec {
    */
   public static boolean CACHE_INFO = true;
 
+  /**
+   * Milliseconds a process (tree) that is terminated gets to exit gracefully
+   * before it is killed forcibly.
+   */
+  public static long KILL_GRACE_PERIOD = 1000;
+
+  /**
+   * Runs Java tools in the current JVM where possible instead of forking. See
+   * {@link InProcessJava} for the commands that qualify. Commands with a
+   * timeout are always forked.
+   */
+  public static boolean IN_PROCESS_JAVA = false;
+
+  /**
+   * Shares the outcome of an execution with concurrent executions of the same
+   * command line in the same directory instead of running the command
+   * repeatedly. See {@link SingleFlight}.
+   */
+  public static boolean SINGLE_FLIGHT = false;
+
+  /**
+   * Limits the number of processes running at the same time, or null for no
+   * limit. A {@link Jobserver} shares the limit with child makes, an
+   * {@link AdaptiveProcessSlots} adapts it to the load of the machine.
+   */
+  public static volatile ProcessSlots PROCESS_SLOTS = null;
+
+  /**
+   * Logs the output of each execution as one block once the execution
+   * finished, so that the output of concurrent executions does not
+   * interleave. See {@link Log#beginGroupedTask}.
+   */
+  public static boolean GROUP_OUTPUT = false;
+
   public static class ExecutionResult implements Serializable {
-    private static final long serialVersionUID = 3298797085346937563L;
+    private static final long serialVersionUID = -6140623815429472108L;
     
     public final String[] cmds;
-    public final String[] outMsgs;
-    public final String[] errMsgs;
+    private final OutputLines outMsgs;
+    private final OutputLines errMsgs;
+    
+    /**
+     * Resources used by the execution, or null if they were not recorded. Not
+     * part of equality, since they differ between runs of the same command.
+     */
+    public final ExecutionMetrics metrics;
+    
     public ExecutionResult(String[] cmds, String[] outMsgs, String[] errMsgs) {
+      this(cmds, outMsgs, errMsgs, null);
+    }
+    public ExecutionResult(String[] cmds, String[] outMsgs, String[] errMsgs, ExecutionMetrics metrics) {
+      this(cmds, outMsgs == null ? null : OutputLines.of(outMsgs), errMsgs == null ? null : OutputLines.of(errMsgs), metrics);
+    }
+    public ExecutionResult(String[] cmds, OutputLines outMsgs, OutputLines errMsgs, ExecutionMetrics metrics) {
       this.cmds = cmds;
       this.outMsgs = outMsgs;
       this.errMsgs = errMsgs;
+      this.metrics = metrics;
+    }
+
+    /**
+     * @return the standard output, or null. Lines are decoded when accessed.
+     */
+    public OutputLines getOutLines() {
+      return outMsgs;
+    }
+
+    /**
+     * @return the error output, or null. Lines are decoded when accessed.
+     */
+    public OutputLines getErrLines() {
+      return errMsgs;
+    }
+
+    /**
+     * @return the standard output, all lines decoded, or null.
+     * @deprecated use {@link #getOutLines()}, which decodes lines lazily.
+     */
+    @Deprecated
+    public String[] getOutMsgs() {
+      return outMsgs == null ? null : outMsgs.toStringArray();
+    }
+
+    /**
+     * @return the error output, all lines decoded, or null.
+     * @deprecated use {@link #getErrLines()}, which decodes lines lazily.
+     */
+    @Deprecated
+    public String[] getErrMsgs() {
+      return errMsgs == null ? null : errMsgs.toStringArray();
     }
     /**
      * Generated by Eclipse.
@@ -97,8 +193,8 @@ public class Exec {
       final int prime = 31;
       int result = 1;
       result = prime * result + Arrays.hashCode(cmds);
-      result = prime * result + Arrays.hashCode(errMsgs);
-      result = prime * result + Arrays.hashCode(outMsgs);
+      result = prime * result + ((errMsgs == null) ? 0 : errMsgs.hashCode());
+      result = prime * result + ((outMsgs == null) ? 0 : outMsgs.hashCode());
       return result;
     }
     /**
@@ -115,9 +211,15 @@ public class Exec {
       ExecutionResult other = (ExecutionResult) obj;
       if (!Arrays.equals(cmds, other.cmds))
         return false;
-      if (!Arrays.equals(errMsgs, other.errMsgs))
+      if (errMsgs == null) {
+        if (other.errMsgs != null)
+          return false;
+      } else if (!errMsgs.equals(other.errMsgs))
         return false;
-      if (!Arrays.equals(outMsgs, other.outMsgs))
+      if (outMsgs == null) {
+        if (other.outMsgs != null)
+          return false;
+      } else if (!outMsgs.equals(other.outMsgs))
         return false;
       return true;
     }
@@ -130,81 +232,148 @@ public class Exec {
     public final Process p;
     public final String prefix;
     public final String[] cmds;
-    public String[] outMsgs;
-    public String[] errMsgs;
+    private OutputLines outMsgs;
+    private OutputLines errMsgs;
+    
+    /**
+     * Resources used by the process; available once it terminated.
+     */
+    public ExecutionMetrics metrics;
 
     StreamRunner errStreamLogger;
     StreamRunner outStreamLogger;
-    Future<List<String>> outFuture;
-    Future<List<String>> errFuture;
+    Future<OutputLines> outFuture;
+    Future<OutputLines> errFuture;
+    Future<Integer> exitFuture;
+    ExecutionMetrics.Recorder recorder;
 
     public NonBlockingExecutionResult(Process p, String[] cmds, String prefix) {
       this.p = p;
       this.cmds = cmds;
       this.prefix = prefix;
-      errStreamLogger = new StreamRunner(p.getErrorStream(), "");
-      outStreamLogger = new StreamRunner(p.getInputStream(), "");
+      recorder = ExecutionMetrics.record(p);
+      errStreamLogger = new StreamRunner(p.getErrorStream(), true, Collections.singletonList(p));
+      outStreamLogger = new StreamRunner(p.getInputStream(), false, Collections.singletonList(p));
       outFuture = ioThreadPool().submit(outStreamLogger);
       errFuture = ioThreadPool().submit(errStreamLogger);
+      exitFuture = exitFuture(p);
+    }
+    
+    private synchronized void finishMetrics(boolean success) {
+      if (metrics == null)
+        metrics = Exec.finishMetrics(recorder, prefix, outStreamLogger.bytes(), errStreamLogger.bytes(), success);
     }
 
     /**
-     * Kill the process and update the outMsgs and errMsgs.
+     * Kill the process and update the outMsgs and errMsgs. The process and
+     * its descendants are first asked to terminate and killed forcibly if
+     * they are still alive after {@link Exec#KILL_GRACE_PERIOD}.
      */
     public void kill() {
       try {
-        p.destroy();
-
-        boolean alive = false;
-        do {
-          try {
-            p.exitValue();
-            alive = false;
-          } catch(IllegalThreadStateException e) {
-            alive = true;
-          }
-        } while (alive);
+        terminate(p, exitFuture);
 
-        List<String> outMsgs = outFuture.get();
-        List<String> errMsgs = errFuture.get();
+        OutputLines outMsgs = drain(outFuture, outStreamLogger);
+        OutputLines errMsgs = drain(errFuture, errStreamLogger);
+        finishMetrics(false);
 
-        this.outMsgs = outMsgs.toArray(new String[outMsgs.size()]);
-        this.errMsgs = errMsgs.toArray(new String[errMsgs.size()]);
+        this.outMsgs = outMsgs;
+        this.errMsgs = errMsgs;
       } catch (ExecutionError e) {
         throw e;
       } catch (Throwable t) {
-        List<String> outMsgs = outStreamLogger == null ? new ArrayList<String>() : outStreamLogger.peek();
-        List<String> errMsgs = errStreamLogger == null ? new ArrayList<String>() : errStreamLogger.peek();
+        String[] outMsgs = outStreamLogger == null ? new String[0] : outStreamLogger.peek().toStringArray();
+        String[] errMsgs = errStreamLogger == null ? new String[0] : errStreamLogger.peek().toStringArray();
 
-        throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]), t);
+        throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs, errMsgs, t);
+      } finally {
+        // no-op if the metrics were finished
+        recorder.cancel();
       }
     }
 
     /**
-     * Wait for process termination and update outMsgs and errMsgs.
+     * Wait for process termination and update outMsgs and errMsgs. If the
+     * executing {@link Exec} has a timeout, the process is terminated when it
+     * runs longer than that.
      */
     public void waitForExit() {
+      waitForExit(timeout);
+    }
+
+    /**
+     * Wait for process termination and update outMsgs and errMsgs.
+     * 
+     * @param timeout
+     *        milliseconds after which the process is terminated, or 0 to wait
+     *        indefinitely.
+     */
+    public void waitForExit(long timeout) {
       try {
-        int exitValue = p.waitFor();
-        List<String> outMsgs = outFuture.get();
-        List<String> errMsgs = errFuture.get();
+        int exitValue;
+        try {
+          exitValue = awaitExit(p, exitFuture, timeout);
+        } catch (TimeoutException e) {
+          OutputLines outMsgs = drain(outFuture, outStreamLogger);
+          OutputLines errMsgs = drain(errFuture, errStreamLogger);
+          finishMetrics(false);
+          throw new ExecutionTimeout(timeout, cmds, outMsgs.toStringArray(), errMsgs.toStringArray());
+        }
+        OutputLines outMsgs = outFuture.get();
+        OutputLines errMsgs = errFuture.get();
+        finishMetrics(exitValue == 0);
 
         if (exitValue != 0) {
-          throw new ExecutionError("Command failed", cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]));
+          throw new ExecutionError("Command failed", cmds, outMsgs.toStringArray(), errMsgs.toStringArray());
         }
 
-        this.outMsgs = outMsgs.toArray(new String[outMsgs.size()]);
-        this.errMsgs = errMsgs.toArray(new String[errMsgs.size()]);
+        this.outMsgs = outMsgs;
+        this.errMsgs = errMsgs;
       } catch (ExecutionError e) {
         throw e;
       } catch (Throwable t) {
-        List<String> outMsgs = outStreamLogger == null ? new ArrayList<String>() : outStreamLogger.peek();
-        List<String> errMsgs = errStreamLogger == null ? new ArrayList<String>() : errStreamLogger.peek();
+        String[] outMsgs = outStreamLogger == null ? new String[0] : outStreamLogger.peek().toStringArray();
+        String[] errMsgs = errStreamLogger == null ? new String[0] : errStreamLogger.peek().toStringArray();
 
-        throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]), t);
+        throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs, errMsgs, t);
+      } finally {
+        // no-op if the metrics were finished
+        recorder.cancel();
       }
     }
 
+    /**
+     * @return the standard output once the process terminated, or null.
+     *         Lines are decoded when accessed.
+     */
+    public OutputLines getOutLines() {
+      return outMsgs;
+    }
+
+    /**
+     * @return the error output once the process terminated, or null. Lines
+     *         are decoded when accessed.
+     */
+    public OutputLines getErrLines() {
+      return errMsgs;
+    }
+
+    /**
+     * @deprecated use {@link #getOutLines()}, which decodes lines lazily.
+     */
+    @Deprecated
+    public String[] getOutMsgs() {
+      return outMsgs == null ? null : outMsgs.toStringArray();
+    }
+
+    /**
+     * @deprecated use {@link #getErrLines()}, which decodes lines lazily.
+     */
+    @Deprecated
+    public String[] getErrMsgs() {
+      return errMsgs == null ? null : errMsgs.toStringArray();
+    }
+
     /**
      * Retrieve outMsgs while process is still running.
      * @return the current outMsgs.
@@ -294,60 +463,179 @@ public class Exec {
   }
   
   /**
-   * A thread that forwards the stream in to the stream out,
-   * prepending a prefix to each line. See
-   * http://www.javaworld.com
+   * Signals that a command was terminated because it exceeded its timeout.
+   */
+  public static class ExecutionTimeout extends ExecutionError {
+    private static final long serialVersionUID = 5096347245418513398L;
+    public final long timeout;
+
+    public ExecutionTimeout(long timeout, String[] cmds, String[] outMsgs, String[] errMsgs) {
+      super("Command timed out after " + timeout + "ms", cmds, outMsgs, errMsgs);
+      this.timeout = timeout;
+    }
+  }
+  
+  /**
+   * Receives the output of executed commands line by line as it arrives.
+   */
+  public interface LineListener {
+    /**
+     * @param err
+     *        whether the line was read from standard error.
+     * @return false to terminate the command.
+     */
+    public boolean line(String line, boolean err);
+  }
+
+  /**
+   * A thread that reads the stream into compact {@link OutputLines},
+   * forwarding each line to the log unless silent and to the line listener.
+   * See http://www.javaworld.com
    * /javaworld/jw-12-2000/jw-1229-traps.html to understand why
    * we need this.
    */
-  private class StreamRunner implements Callable<List<String>> {
+  private class StreamRunner implements Callable<OutputLines> {
     private final InputStream in;
-    private String prefix;
+    private final boolean err;
+    private final List<Process> ps;
+    private final LineListener listener = lineListener;
+    private final Log.Task task = log.currentTask();
 
-    private List<String> msg = new ArrayList<>();
+    private final OutputLines.Builder msg = new OutputLines.Builder();
+    private volatile long bytes;
+    private volatile boolean aborted;
     
-    public StreamRunner(InputStream in, String prefix) {
+    /**
+     * @param ps
+     *        the processes to terminate when the line listener asks for it.
+     */
+    public StreamRunner(InputStream in, boolean err, List<Process> ps) {
       this.in = in;
-      this.prefix = prefix;
+      this.err = err;
+      this.ps = ps;
+    }
+    
+    /**
+     * @return the number of bytes read from the stream so far.
+     */
+    public long bytes() {
+      return bytes;
+    }
+
+    /**
+     * @return true iff the line listener terminated the command.
+     */
+    public boolean aborted() {
+      return aborted;
     }
 
     @Override
-    public List<String> call() {
+    public OutputLines call() {
+      // log as part of the task that started the command
+      Log.Attachment attachment = log.attach(task);
       try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-          msg.add(prefix + line);
-          if (!silent)
-            log.logErr(prefix + line, Log.ALWAYS);
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+          bytes += read;
+          synchronized (msg) {
+            int completed = msg.write(buf, 0, read);
+            if (!silent || listener != null)
+              for (int i = msg.lineCount() - completed; i < msg.lineCount(); i++)
+                handle(msg.line(i));
+          }
+        }
+        synchronized (msg) {
+          int lines = msg.lineCount();
+          OutputLines result = msg.finish();
+          if ((!silent || listener != null) && msg.lineCount() > lines)
+            handle(msg.line(lines));
+          return result;
         }
       } catch (IOException ioe) {
         ioe.printStackTrace();
+      } finally {
+        attachment.close();
+      }
+      return msg.build();
+    }
+
+    private void handle(String line) {
+      if (!silent)
+        log.logErr(line, Log.ALWAYS);
+      if (listener != null && !aborted && !listener.line(line, err)) {
+        aborted = true;
+        // keep reading so that the terminated processes do not block
+        ioThreadPool().submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            for (Process p : ps)
+              ProcessUtils.destroyTree(p, true);
+            return null;
+          }
+        });
       }
-      return msg;
     }
     
-    public synchronized List<String> peek() {
-      return msg;
+    public OutputLines peek() {
+      return msg.build();
     }
 
-    public synchronized void clear() {
-      msg = new ArrayList<>();
+    public void clear() {
+      msg.clear();
     }
 
-    public synchronized List<String> pop() {
-      List<String> tmp = peek();
-      clear();
-      return tmp;
+    public OutputLines pop() {
+      synchronized (msg) {
+        OutputLines tmp = peek();
+        clear();
+        return tmp;
+      }
     }
   }
   
   private boolean silent;
+  private long timeout;
+  private LineListener lineListener;
   
   public Exec(boolean silent) {
     this.silent = silent;
   }
   
+  /**
+   * @param timeout
+   *        milliseconds after which executed commands are terminated, or 0 for
+   *        no timeout.
+   */
+  public Exec(boolean silent, long timeout) {
+    this.silent = silent;
+    setTimeout(timeout);
+  }
+  
+  public long getTimeout() {
+    return timeout;
+  }
+  
+  public void setTimeout(long timeout) {
+    if (timeout < 0)
+      throw new IllegalArgumentException("negative timeout: " + timeout);
+    this.timeout = timeout;
+  }
+  
+  public LineListener getLineListener() {
+    return lineListener;
+  }
+  
+  /**
+   * @param lineListener
+   *        receives the output of commands executed from now on, or null.
+   *        Commands with a line listener are always forked and never share
+   *        their execution.
+   */
+  public void setLineListener(LineListener lineListener) {
+    this.lineListener = lineListener;
+  }
+  
   public static ExecutionResult run(String... cmds) {
     return new Exec(true).runWithPrefix(cmds[0], null, cmds);
   }
@@ -361,6 +649,16 @@ public class Exec {
     return new Exec(silent).runWithPrefix(cmds[0], null, cmds);
   }
 
+  /**
+   * Runs the command on all arguments, splitting them into batches that fit
+   * the command-line limit of the operating system.
+   * 
+   * @see BatchExec
+   */
+  public static ExecutionResult runBatched(File dir, String[] cmds, List<String> args) {
+    return new BatchExec(cmds[0], dir, cmds).run(args);
+  }
+
   public static NonBlockingExecutionResult runNonBlocking(String... cmds) {
     return new Exec(true).runNonBlockingWithPrefix(cmds[0], null, cmds);
   }
@@ -407,50 +705,154 @@ public class Exec {
   public ExecutionResult runWithPrefix(String prefix, Object... cmds) {
     return runWithPrefix(prefix, null, cmds);
   }
-  public ExecutionResult runWithPrefix(String prefix, File dir, String... cmds) {
-    int exitValue;
+  public ExecutionResult runWithPrefix(final String prefix, final File dir, final String... cmds) {
+    if (SINGLE_FLIGHT && lineListener == null)
+      return SingleFlight.flights.run(prefix, dir, cmds, timeout, silent, new Callable<ExecutionResult>() {
+        @Override
+        public ExecutionResult call() {
+          return runUnsharedWithPrefix(prefix, dir, cmds);
+        }
+      });
+    return runUnsharedWithPrefix(prefix, dir, cmds);
+  }
+
+  private ExecutionResult runUnsharedWithPrefix(String prefix, File dir, String... cmds) {
+    if (IN_PROCESS_JAVA && timeout == 0 && lineListener == null) {
+      ExecutionResult result = InProcessJava.tryRun(prefix, dir, silent, cmds);
+      if (result != null)
+        return result;
+    }
+    
+    return runPipelineWithPrefix(prefix, dir, null, cmds);
+  }
 
-    StreamRunner errStreamLogger = null;
+  /**
+   * Executes the given command with its standard input read from
+   * <code>input</code>.
+   * 
+   * @see #runWithPrefix(String, File, String...)
+   */
+  public ExecutionResult runWithInput(String prefix, File dir, ExecInput input, String... cmds) {
+    return runPipelineWithPrefix(prefix, dir, input, cmds);
+  }
+
+  /**
+   * Executes the given commands as a pipeline, connecting the standard output
+   * of each command to the standard input of the next one. On Java 9 and
+   * later, the stages are connected by operating-system pipes and no output
+   * passes through the JVM; older JVMs copy between the stages.
+   * <p>
+   * Like with bash's <code>pipefail</code> option, the pipeline fails if any
+   * of its commands fails. A timeout applies to the pipeline as a whole.
+   * 
+   * @param input
+   *        the standard input of the first command, or null.
+   * @param stages
+   *        the commands of the pipeline, each an executable and its
+   *        arguments.
+   * @return the standard output of the last command and the error output of
+   *         all commands.
+   */
+  public ExecutionResult runPipelineWithPrefix(String prefix, File dir, ExecInput input, String[]... stages) {
+    int n = stages.length;
+    String[] cmds = stages[n - 1];
+    
+    StreamRunner[] errStreamLoggers = new StreamRunner[n];
     StreamRunner outStreamLogger = null;
+    ExecutionMetrics.Recorder[] recorders = new ExecutionMetrics.Recorder[n];
+    Log.Task trace = GROUP_OUTPUT ? log.groupExecution(prefix, cmds) : log.traceExecution(prefix, cmds);
+    boolean success = false;
     try {
-      Runtime rt = Runtime.getRuntime();
-
 //      if (!SILENT_EXECUTION) {
 //        log.beginExecution(prefix, cmds);
 //      }
 
-      Process p = rt.exec(cmds, null, dir);
-
-      errStreamLogger = new StreamRunner(p.getErrorStream(), "");
-      outStreamLogger = new StreamRunner(p.getInputStream(), "");
-
+      List<Process> ps = start(dir, input, stages);
+      
       // We need to start these threads even if we don't care for
       // the output, because the process will block if we don't
       // read from the streams
 
       ExecutorService ioThreadPool = ioThreadPool();
-      Future<List<String>> outFuture = ioThreadPool.submit(outStreamLogger);
-      Future<List<String>> errFuture = ioThreadPool.submit(errStreamLogger);
+      List<Future<OutputLines>> errFutures = new ArrayList<>(n);
+      List<Future<Integer>> exitFutures = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        Process p = ps.get(i);
+        recorders[i] = ExecutionMetrics.record(p);
+        errStreamLoggers[i] = new StreamRunner(p.getErrorStream(), true, ps);
+        errFutures.add(ioThreadPool.submit(errStreamLoggers[i]));
+        exitFutures.add(exitFuture(p));
+      }
+      outStreamLogger = new StreamRunner(ps.get(n - 1).getInputStream(), false, ps);
+      Future<OutputLines> outFuture = ioThreadPool.submit(outStreamLogger);
+
+      // Wait for the processes to finish
+      int[] exitValues;
+      try {
+        exitValues = awaitExit(ps, exitFutures, timeout);
+      } catch (TimeoutException e) {
+        OutputLines outMsgs = drain(outFuture, outStreamLogger);
+        List<OutputLines> errMsgs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+          errMsgs.add(drain(errFutures.get(i), errStreamLoggers[i]));
+          finishMetrics(recorders[i], stagePrefix(prefix, stages, i), i == n - 1 ? outStreamLogger.bytes() : -1, errStreamLoggers[i].bytes(), false);
+        }
+        throw new ExecutionTimeout(timeout, cmds, outMsgs.toStringArray(), concat(errMsgs).toStringArray());
+      }
+      OutputLines outMsgs = outFuture.get();
+      List<OutputLines> errMsgsList = new ArrayList<>(n);
+      ExecutionMetrics metrics = null;
+      int failed = -1;
+      for (int i = 0; i < n; i++) {
+        errMsgsList.add(errFutures.get(i).get());
+        metrics = finishMetrics(recorders[i], stagePrefix(prefix, stages, i), i == n - 1 ? outStreamLogger.bytes() : -1, errStreamLoggers[i].bytes(), exitValues[i] == 0);
+        if (exitValues[i] != 0 && failed < 0)
+          failed = i;
+      }
+      OutputLines errMsgs = concat(errMsgsList);
 
-      // Wait for the process to finish
-      exitValue = p.waitFor();
-      List<String> outMsgs = outFuture.get();
-      List<String> errMsgs = errFuture.get();
+      boolean aborted = outStreamLogger.aborted();
+      for (StreamRunner errStreamLogger : errStreamLoggers)
+        aborted |= errStreamLogger.aborted();
+      if (aborted) {
+        throw new ExecutionError("Command terminated by line listener", cmds, outMsgs.toStringArray(), errMsgs.toStringArray());
+      }
 
-      if (exitValue != 0) {
-        throw new ExecutionError("Command failed", cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]));
+      if (failed >= 0) {
+        throw new ExecutionError("Command failed", stages[failed], outMsgs.toStringArray(), errMsgs.toStringArray());
       }
       
-      return new ExecutionResult(cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]));
+      success = true;
+      return new ExecutionResult(cmds, outMsgs, errMsgs, metrics);
     } catch (ExecutionError e) {
       throw e; 
     } catch (Throwable t) {
-      List<String> outMsgs = outStreamLogger == null ? new ArrayList<String>() : outStreamLogger.peek();
-      List<String> errMsgs = errStreamLogger == null ? new ArrayList<String>() : errStreamLogger.peek();
+      String[] outMsgs = outStreamLogger == null ? new String[0] : outStreamLogger.peek().toStringArray();
+      OutputLines.Builder errMsgs = new OutputLines.Builder();
+      for (StreamRunner errStreamLogger : errStreamLoggers)
+        if (errStreamLogger != null)
+          errMsgs.addAll(errStreamLogger.peek());
 
-      throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]), t);
+      throw new ExecutionError("problems while executing " + prefix + ": " + t.getMessage(), cmds, outMsgs, errMsgs.build().toStringArray(), t);
+    } finally {
+      for (ExecutionMetrics.Recorder recorder : recorders)
+        if (recorder != null)
+          recorder.cancel();
+      log.endTask(trace, success ? "done" : "failed", true);
     }
-    
+  }
+
+  private static String stagePrefix(String prefix, String[][] stages, int i) {
+    return stages.length == 1 ? prefix : stages[i][0];
+  }
+
+  private static OutputLines concat(List<OutputLines> lines) {
+    if (lines.size() == 1)
+      return lines.get(0);
+    OutputLines.Builder b = new OutputLines.Builder();
+    for (OutputLines l : lines)
+      b.addAll(l);
+    return b.build();
   }
 
     /**
@@ -469,12 +871,233 @@ public class Exec {
      *         when something goes wrong
      */
   public NonBlockingExecutionResult runNonBlockingWithPrefix(String prefix, File dir, String... cmds) {
-    Runtime rt = Runtime.getRuntime();
+    return runNonBlockingWithInput(prefix, dir, null, cmds);
+  }
+
+  /**
+   * Executes the given command in the background with its standard input
+   * read from <code>input</code>.
+   */
+  public NonBlockingExecutionResult runNonBlockingWithInput(String prefix, File dir, ExecInput input, String... cmds) {
     try {
-      Process p = rt.exec(cmds, null, dir);
+      Process p = start(dir, input, cmds).get(0);
       return new NonBlockingExecutionResult(p, cmds, prefix);
     } catch (IOException e) {
       throw new ExecutionError("problems while executing " + prefix + ": " + e.getMessage(), cmds, null, null, e);
     }
   }
+
+  /**
+   * Stops recording the metrics of a terminated process and reports them to
+   * the {@link ExecMetricsRegistry#registry}.
+   */
+  private static ExecutionMetrics finishMetrics(ExecutionMetrics.Recorder recorder, String prefix, long outBytes, long errBytes, boolean success) {
+    ExecutionMetrics metrics = recorder.finish(outBytes, errBytes);
+    ExecMetricsRegistry.registry.record(prefix, metrics, success);
+    return metrics;
+  }
+
+  /**
+   * Starts the commands, connecting each command's standard output to the
+   * standard input of the next one.
+   */
+  private static List<Process> start(File dir, ExecInput input, String[]... stages) throws IOException {
+    List<ProcessBuilder> builders = new ArrayList<>(stages.length);
+    for (String[] cmds : stages)
+      builders.add(new ProcessBuilder(cmds).directory(dir));
+    if (input != null && input.file != null)
+      builders.get(0).redirectInput(input.file);
+
+    ProcessSlots slots = PROCESS_SLOTS;
+    ProcessSlots.Slot slot = null;
+    if (slots != null) {
+      for (ProcessBuilder b : builders)
+        slots.configure(b);
+      try {
+        slot = slots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for a process slot");
+      }
+    }
+
+    List<Process> ps;
+    try {
+      ps = start(builders);
+    } catch (IOException | RuntimeException e) {
+      if (slot != null)
+        slot.release();
+      throw e;
+    }
+    if (slot != null)
+      releaseOnExit(ps, slot);
+
+    if (input != null && input.bytes != null)
+      pump(new ByteArrayInputStream(input.bytes), ps.get(0).getOutputStream());
+    return ps;
+  }
+
+  private static List<Process> start(List<ProcessBuilder> builders) throws IOException {
+    List<Process> ps = builders.size() == 1 ? null : ProcessUtils.startPipeline(builders);
+    if (ps != null)
+      return ps;
+
+    ps = new ArrayList<>(builders.size());
+    try {
+      for (ProcessBuilder b : builders)
+        ps.add(b.start());
+    } catch (IOException e) {
+      for (Process p : ps)
+        ProcessUtils.destroyTree(p, true);
+      throw e;
+    }
+    for (int i = 0; i < ps.size() - 1; i++)
+      pump(ps.get(i).getInputStream(), ps.get(i + 1).getOutputStream());
+    return ps;
+  }
+
+  /**
+   * Releases the process slot once all processes exited.
+   */
+  private static void releaseOnExit(final List<Process> ps, final ProcessSlots.Slot slot) {
+    ioThreadPool().submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          for (Process p : ps)
+            while (true)
+              try {
+                p.waitFor();
+                break;
+              } catch (InterruptedException e) {
+              }
+        } finally {
+          slot.release();
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Copies in to out in the background and closes out afterwards. Fails
+   * silently if the reading process exits early.
+   */
+  private static void pump(final InputStream in, final OutputStream out) {
+    ioThreadPool().submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          byte[] buf = new byte[8192];
+          int read;
+          while ((read = in.read(buf)) >= 0)
+            out.write(buf, 0, read);
+        } catch (IOException e) {
+        } finally {
+          try {
+            out.close();
+          } catch (IOException e) {
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Completes when the process exits. Waiting for the future blocks the
+   * waiting thread instead of polling the process.
+   */
+  private static Future<Integer> exitFuture(final Process p) {
+    return ioThreadPool().submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws InterruptedException {
+        return p.waitFor();
+      }
+    });
+  }
+
+  /**
+   * Waits for the process to exit. The process is terminated if the timeout
+   * expires or the waiting thread is interrupted.
+   * 
+   * @param timeout
+   *        in milliseconds, 0 to wait indefinitely.
+   * @throws TimeoutException
+   *         if the process had to be terminated because of the timeout.
+   */
+  private static int awaitExit(Process p, Future<Integer> exitFuture, long timeout) throws TimeoutException, InterruptedException, ExecutionException {
+    return awaitExit(Collections.singletonList(p), Collections.singletonList(exitFuture), timeout)[0];
+  }
+
+  /**
+   * Waits for all processes to exit. All processes are terminated if the
+   * timeout expires or the waiting thread is interrupted.
+   * 
+   * @param timeout
+   *        in milliseconds for all processes together, 0 to wait indefinitely.
+   * @throws TimeoutException
+   *         if the processes had to be terminated because of the timeout.
+   */
+  private static int[] awaitExit(List<Process> ps, List<Future<Integer>> exitFutures, long timeout) throws TimeoutException, InterruptedException, ExecutionException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    int[] exitValues = new int[ps.size()];
+    try {
+      // later stages exit first, closing the pipes of earlier stages
+      for (int i = ps.size() - 1; i >= 0; i--)
+        if (timeout > 0)
+          exitValues[i] = exitFutures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        else
+          exitValues[i] = exitFutures.get(i).get();
+      return exitValues;
+    } catch (TimeoutException e) {
+      terminate(ps, exitFutures);
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.interrupted();
+      terminate(ps, exitFutures);
+      Thread.currentThread().interrupt();
+      throw e;
+    }
+  }
+
+  /**
+   * Asks the process and its descendants to terminate and kills them
+   * forcibly if they did not exit within {@link #KILL_GRACE_PERIOD}.
+   */
+  private static void terminate(Process p, Future<Integer> exitFuture) throws InterruptedException {
+    terminate(Collections.singletonList(p), Collections.singletonList(exitFuture));
+  }
+
+  private static void terminate(List<Process> ps, List<Future<Integer>> exitFutures) throws InterruptedException {
+    for (Process p : ps)
+      ProcessUtils.destroyTree(p, false);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(KILL_GRACE_PERIOD);
+    for (int i = 0; i < ps.size(); i++) {
+      try {
+        exitFutures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        continue;
+      } catch (TimeoutException | ExecutionException e) {
+      }
+
+      ProcessUtils.destroyTree(ps.get(i), true);
+      try {
+        exitFutures.get(i).get();
+      } catch (ExecutionException e) {
+      }
+    }
+  }
+
+  /**
+   * Collects the output of a terminated process. Descendants that survived
+   * termination may keep the stream open, so we only wait for a grace period
+   * and take what has been read until then.
+   */
+  private static OutputLines drain(Future<OutputLines> future, StreamRunner runner) throws InterruptedException {
+    try {
+      return future.get(KILL_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | ExecutionException e) {
+      return runner.peek();
+    }
+  }
 }
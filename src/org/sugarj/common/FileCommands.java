@@ -14,6 +14,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.CharBuffer;
 import java.nio.file.CopyOption;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
@@ -40,6 +41,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.sugarj.common.path.AbsolutePath;
 import org.sugarj.common.path.Path;
+import org.sugarj.common.path.PathMap;
 import org.sugarj.common.path.RelativePath;
 
 /**
@@ -50,6 +52,12 @@ import org.sugarj.common.path.RelativePath;
 public class FileCommands {
   public final static boolean DO_DELETE = true;
 
+  /**
+   * The lower-case name of the operating system.
+   */
+  public final static String OS_NAME = System.getProperty("os.name").toLowerCase();
+  public final static boolean WINDOWS = OS_NAME.contains("win");
+
   public final static String TMP_DIR;
   static {
     try {
@@ -275,17 +283,68 @@ public class FileCommands {
   }
 
   public static String fileName(String file) {
-    int index = file.lastIndexOf(File.separator);
+    return file.substring(fileNameStart(file), fileNameEnd(file));
+  }
 
-    if (index >= 0)
-      file = file.substring(index + 1);
+  /**
+   * @return the index after the last separator, or 0 if there is none.
+   */
+  public static int fileNameStart(CharSequence file) {
+    return lastIndexOf(file, File.separatorChar) + 1;
+  }
+
+  /**
+   * @return the index of the dot that starts the extension of the file name,
+   *         or the length of the path if there is none. A dot that starts the
+   *         file name does not start an extension.
+   */
+  public static int fileNameEnd(CharSequence file) {
+    int dot = lastIndexOf(file, '.');
+    return dot > fileNameStart(file) ? dot : file.length();
+  }
 
-    index = file.lastIndexOf(".");
+  /**
+   * @return the file name without directory and extension as a view on the
+   *         path, see {@link #fileName(String)}.
+   */
+  public static CharSequence fileNameView(CharSequence file) {
+    return CharBuffer.wrap(file, fileNameStart(file), fileNameEnd(file));
+  }
 
-    if (index > 0)
-      file = file.substring(0, index);
+  /**
+   * @return the index of the last dot if it is not the first character, as
+   *         used by {@link #getExtension(String)} and
+   *         {@link #dropExtension(String)}; or -1.
+   */
+  public static int extensionDot(CharSequence file) {
+    int dot = lastIndexOf(file, '.');
+    return dot > 0 ? dot : -1;
+  }
 
-    return file;
+  /**
+   * @return the extension as a view on the path, or null.
+   */
+  public static CharSequence extensionView(CharSequence file) {
+    int dot = extensionDot(file);
+    return dot < 0 ? null : CharBuffer.wrap(file, dot + 1, file.length());
+  }
+
+  /**
+   * @return the index of the separator before the file name if it is not the
+   *         first character, as used by {@link #dropFilename(String)}; or 0.
+   */
+  public static int directoryEnd(CharSequence file) {
+    int i = lastIndexOf(file, File.separatorChar);
+    return i > 0 ? i : 0;
+  }
+
+  private static int lastIndexOf(CharSequence s, char c) {
+    if (s instanceof String)
+      return ((String) s).lastIndexOf(c);
+    for (int i = s.length() - 1; i >= 0; i--)
+      if (s.charAt(i) == c)
+        return i;
+    return -1;
   }
 
   public static RelativePath[] listFiles(Path p) {
@@ -480,10 +539,12 @@ public class FileCommands {
   public static String toCygwinPath(String filepath) {
     // XXX hacky
 
-    if (System.getProperty("os.name").toLowerCase().contains("win")) {
-      filepath = filepath.replace("\\", "/");
-      filepath = filepath.replace("/C:/", "/cygdrive/C/");
-      filepath = filepath.replace("C:/", "/cygdrive/C/");
+    if (WINDOWS) {
+      filepath = filepath.replace('\\', '/');
+      if (filepath.contains("C:/")) {
+        filepath = filepath.replace("/C:/", "/cygdrive/C/");
+        filepath = filepath.replace("C:/", "/cygdrive/C/");
+      }
     }
 
     return filepath;
@@ -495,10 +556,12 @@ public class FileCommands {
   public static String toWindowsPath(String filepath) {
     // XXX hacky
 
-    if (System.getProperty("os.name").toLowerCase().contains("win")) {
-      filepath = filepath.replace("/cygdrive/C", "C:");
-      filepath = filepath.replace("/C:", "C:");
-      filepath = filepath.replace("/", "\\");
+    if (WINDOWS) {
+      if (filepath.contains("/cygdrive/C"))
+        filepath = filepath.replace("/cygdrive/C", "C:");
+      if (filepath.contains("/C:"))
+        filepath = filepath.replace("/C:", "C:");
+      filepath = filepath.replace('/', '\\');
     }
 
     return filepath;
@@ -546,7 +609,12 @@ public class FileCommands {
   }
 
   public static String getExtension(Path infile) {
-    return getExtension(infile.getFile());
+    if (WINDOWS)
+      return getExtension(infile.getFile());
+    // the name of the file of an absolute path without trailing separator
+    String path = infile.getAbsolutePath();
+    int dot = lastIndexOf(path, '.');
+    return dot > fileNameStart(path) ? path.substring(dot + 1) : null;
   }
 
   public static String getExtension(File infile) {
@@ -554,7 +622,7 @@ public class FileCommands {
   }
 
   public static String getExtension(String infile) {
-    int i = infile.lastIndexOf('.');
+    int i = extensionDot(infile);
 
     if (i > 0)
       return infile.substring(i + 1, infile.length());
@@ -563,7 +631,7 @@ public class FileCommands {
   }
 
   public static String dropExtension(String file) {
-    int i = file.lastIndexOf('.');
+    int i = extensionDot(file);
 
     if (i > 0)
       return file.substring(0, i);
@@ -592,11 +660,16 @@ public class FileCommands {
   }
 
   public static String dropDirectory(Path p) {
+    if (!WINDOWS) {
+      // file name and extension are the last segment
+      String path = p.getAbsolutePath();
+      return path.substring(fileNameStart(path));
+    }
     String ext = getExtension(p);
     if (ext == null)
       return fileName(p);
     else
-      return fileName(p) + "." + getExtension(p);
+      return fileName(p) + "." + ext;
   }
 
   public static AbsolutePath replaceExtension(AbsolutePath p, String newExtension) {
@@ -648,11 +721,7 @@ public class FileCommands {
   }
 
   public static String dropFilename(String file) {
-    int i = file.lastIndexOf(File.separator);
-    if (i > 0)
-      return file.substring(0, i);
-
-    return "";
+    return file.substring(0, directoryEnd(file));
   }
 
   public static byte[] fileHash(Path file) throws IOException {
@@ -731,6 +800,17 @@ public class FileCommands {
     return null;
   }
 
+  /**
+   * @return the path relative to the innermost of the roots that contains
+   *         it, or null if no root contains it.
+   */
+  public static RelativePath getRelativePath(PathMap<? extends Path> roots, Path fullPath) {
+    Path root = roots.longestPrefixValue(fullPath);
+    if (root == null)
+      return null;
+    return getRelativePath(root, fullPath);
+  }
+
   public static java.nio.file.Path getRelativePath(java.nio.file.Path base, java.nio.file.Path fullPath) {
     try {
       return base.toAbsolutePath().relativize(fullPath.toAbsolutePath());
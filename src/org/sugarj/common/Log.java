@@ -1,7 +1,18 @@
 package org.sugarj.common;
 
 import java.io.PrintStream;
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sugarj.common.log.EventSink;
+import org.sugarj.common.log.LogWriter;
+import org.sugarj.common.log.OutputGroup;
+import org.sugarj.common.log.TaskListener;
 
 public class Log {
   /**
@@ -24,37 +35,219 @@ public class Log {
   
   public static final Log log = new Log();
   
-  private LinkedList<String> tasks = new LinkedList<String>();
-  private LinkedList<Long> timings = new LinkedList<Long>();
-  private LinkedList<Boolean> lightweight = new LinkedList<Boolean>();
-  private int silent = -1;
-  private int loglevel = CORE;
-  
-  public static PrintStream out = System.out;
-  public static PrintStream err = System.err;
+  /**
+   * A task of the task tree. Each thread has its own current task; tasks
+   * begun by a thread nest below its current task. Threads working on behalf
+   * of a task, e.g., in a pool, {@link Log#attach attach} it as their current
+   * task. Closing a task ends it, so tasks
+   * can be scoped with try-with-resources:
+   * 
+   * <pre>
+   * try (Task t = log.beginScopedTask("compile", Log.CORE)) {
+   *   ...
+   * }
+   * </pre>
+   */
+  public static final class Task implements AutoCloseable {
+    private final Log owner;
+    public final Task parent;
+    public final String shortText;
+    public final String longText;
+    public final int level;
+    
+    /**
+     * Number of enclosing tasks, which determines the indentation. Undisplayed
+     * execution tasks do not count.
+     */
+    public final int depth;
+    
+    /**
+     * Whether the task is displayed.
+     */
+    public final boolean active;
+    /**
+     * Unique, positive id of the task.
+     */
+    public final long id;
+    public final long threadId;
+    public final long startNanos;
+    private final String[] cmds;
+    private volatile long endNanos = -1;
+    private volatile String result;
+    
+    /**
+     * Buffers the output within a grouped task, otherwise null.
+     */
+    private final OutputGroup group;
+    
+    /**
+     * The inline task whose text ends the last line written to the group.
+     */
+    private final AtomicReference<Task> openLine;
+    
+    private Task(Log owner, Task parent, String shortText, String longText, int level, boolean active, String[] cmds, boolean transparent, OutputGroup group) {
+      this.owner = owner;
+      this.parent = parent;
+      this.shortText = shortText;
+      this.longText = longText;
+      this.level = level;
+      if (transparent)
+        this.depth = parent == null ? -1 : parent.depth;
+      else
+        this.depth = parent == null ? 0 : parent.depth + 1;
+      this.active = active;
+      this.group = group;
+      this.openLine = group == null ? null : new AtomicReference<Task>();
+      this.id = taskIds.incrementAndGet();
+      this.threadId = Thread.currentThread().getId();
+      this.startNanos = System.nanoTime();
+      this.cmds = cmds;
+    }
+    
+    public boolean isEnded() {
+      return endNanos >= 0;
+    }
+    
+    /**
+     * @return the {@link System#nanoTime()} at which the task ended, or -1
+     *         while it runs.
+     */
+    public long getEndNanos() {
+      return endNanos;
+    }
+    
+    /**
+     * @return the command line of an execution task, or null for other tasks.
+     *         Must not be modified.
+     */
+    public String[] getCommandLine() {
+      return cmds;
+    }
+    
+    /**
+     * @return the duration of the ended task, or the time since it began.
+     */
+    public long getDurationNanos() {
+      long end = endNanos;
+      return (end < 0 ? System.nanoTime() : end) - startNanos;
+    }
+    
+    /**
+     * @return the message the task ended with, or null while it runs.
+     */
+    public String getResult() {
+      return result;
+    }
+    
+    /**
+     * Ends the task with "done" unless it already ended.
+     */
+    @Override
+    public void close() {
+      owner.endTask(this, "done", BORING_DONE_MESSAGES);
+    }
+    
+    @Override
+    public String toString() {
+      return shortText;
+    }
+  }
   
-  public synchronized void beginTask(String shortText, String longText, boolean inline, int tasklevel) {
-    if (silent >= 0)
-      return;
+  /**
+   * Restores the previous current task of a thread when closed.
+   */
+  public final class Attachment implements AutoCloseable {
+    private final Task previous;
     
-    boolean active = (loglevel & tasklevel) > 0;
+    private Attachment(Task previous) {
+      this.previous = previous;
+    }
     
-    if (!active ||  longText == null || shortText == null) {
-      tasks.push(null);
+    @Override
+    public void close() {
+      current.set(previous);
     }
-    else {
-      noLongerLeaf();
+  }
   
-      indent();
-      out.print(longText);
-      if (!inline) 
-        out.println();
+  private final ThreadLocal<Task> current = new ThreadLocal<>();
+  
+  /**
+   * The inline task whose text ends the last line written, which must be
+   * terminated before anything else is written.
+   */
+  private final AtomicReference<Task> openLine = new AtomicReference<>();
   
-      tasks.push(shortText);
-      lightweight.push(inline);
+  private static final AtomicLong taskIds = new AtomicLong();
+  
+  private final List<TaskListener> listeners = new CopyOnWriteArrayList<>();
+  
+  private final AtomicInteger silent = new AtomicInteger(-1);
+  private volatile int loglevel = CORE;
+  
+  /**
+   * Receives messages of the levels in {@link #sinkLevels} instead of the
+   * text output.
+   */
+  private volatile EventSink sink;
+  private volatile int sinkLevels;
+  
+  public static PrintStream out = System.out;
+  public static PrintStream err = System.err;
+  
+  private static final String NL = System.lineSeparator();
+  
+  /**
+   * Receives all formatted output, or null to print directly.
+   */
+  private volatile LogWriter writer;
+  private boolean flushOnExit;
+  
+  /**
+   * Begins a task nested below the current task of this thread.
+   */
+  public void beginTask(String shortText, String longText, boolean inline, int tasklevel) {
+    beginTask(shortText, longText, inline, tasklevel, null, false, null);
+  }
+  
+  /**
+   * Like {@link #beginTask(String, String, boolean, int)}, but returns the
+   * task.
+   * 
+   * @return the task, which ends when closed; null if logging is silenced.
+   */
+  public Task beginScopedTask(String shortText, String longText, boolean inline, int tasklevel) {
+    return beginTask(shortText, longText, inline, tasklevel, null, false, null);
+  }
+  
+  /**
+   * Begins a task whose output is buffered and published as one block when
+   * the task ends, so that it does not interleave with the output of
+   * concurrent tasks. This includes the output of subtasks and of threads
+   * attached to the task. Large output is moved to a temporary file.
+   */
+  public Task beginGroupedTask(String shortText, String longText, int tasklevel) {
+    return beginTask(shortText, longText, false, tasklevel, null, false, new OutputGroup());
+  }
+  
+  private Task beginTask(String shortText, String longText, boolean inline, int tasklevel, String[] cmds, boolean transparent, OutputGroup group) {
+    if (silent.get() >= 0)
+      return null;
+    
+    boolean active = (loglevel & tasklevel) > 0 && longText != null && shortText != null;
+    Task task = new Task(this, current.get(), shortText, longText, tasklevel, active, cmds, transparent, group);
+    for (TaskListener listener : listeners)
+      listener.taskBegun(task);
+    
+    if (active) {
+      Task destination = destination(task);
+      noLongerLeaf(destination);
+      write(destination, out, indentation(task.depth) + longText + (inline ? "" : NL));
+      if (inline)
+        openLine(destination).set(task);
     }
     
-    timings.push(System.currentTimeMillis());
+    current.set(task);
+    return task;
   }
   
   public void beginTask(String shortText, String longText, int level) {
@@ -65,33 +258,123 @@ public class Log {
     beginTask(text, text, level);
   }
   
-  public synchronized long endTask(String error, boolean doneMessage) {
-    if (silent >= 0)
+  public Task beginScopedTask(String shortText, String longText, int level) {
+    return beginScopedTask(shortText, longText, COLLAPSE_LEAF_TASKS, level);
+  }
+  
+  public Task beginScopedTask(String text, int level) {
+    return beginScopedTask(text, text, level);
+  }
+  
+  /**
+   * @return the current task of this thread, or null.
+   */
+  public Task currentTask() {
+    return current.get();
+  }
+  
+  /**
+   * Makes the task the current task of this thread, e.g., in a pooled worker
+   * thread working on behalf of the task. Close the attachment to restore the
+   * previous current task.
+   */
+  public Attachment attach(Task task) {
+    Attachment attachment = new Attachment(current.get());
+    current.set(task);
+    return attachment;
+  }
+  
+  public long endTask(String error, boolean doneMessage) {
+    if (silent.get() >= 0)
       return -1;
     
-    long endTime = System.currentTimeMillis();
-    
-    if (tasks.isEmpty())
+    Task task = current.get();
+    if (task == null)
       return -1;
+    return endTask(task, error, doneMessage);
+  }
+  
+  /**
+   * Ends the task and all of its unfinished subtasks of this thread.
+   * 
+   * @return the duration in milliseconds, or -1 if the task already ended.
+   */
+  public long endTask(Task task, String error, boolean doneMessage) {
+    if (task == null)
+      return -1;
+    long endTime = System.nanoTime();
     
-    String shortText = tasks.pop();    
-    Long startTime = timings.pop();
-    long duration = endTime - startTime;
-
-    if (shortText == null)
-      return duration;
+    if (isAncestor(task, current.get()))
+      for (Task t = current.get(); t != task; t = t.parent)
+        if (!t.isEnded())
+          endTask(t, error, doneMessage);
     
-    if (lightweight.pop()) {
-      out.println(" ... " + error + " - " + duration + "ms");
-    } else if (doneMessage) {
-      log.log(shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+    synchronized (task) {
+      if (task.isEnded())
+        return -1;
+      task.result = error;
+      task.endNanos = endTime;
     }
-    else 
-      log.log(shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+    if (current.get() == task)
+      current.set(task.parent);
+    for (TaskListener listener : listeners)
+      listener.taskEnded(task);
+    
+    long duration = (endTime - task.startNanos) / 1000000;
+    if (task.active) {
+      Task destination = destination(task);
+      if (openLine(destination).compareAndSet(task, null)) {
+        write(destination, out, " ... " + error + " - " + duration + "ms" + NL);
+      } else if (doneMessage) {
+        log(task, task.depth, task.shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+      }
+      else 
+        log(task, task.depth, task.shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+    }
+    
+    if (task.group != null)
+      publish(task);
     
     return duration;
   }
   
+  private static boolean isAncestor(Task ancestor, Task task) {
+    for (Task t = task; t != null; t = t.parent)
+      if (t == ancestor)
+        return true;
+    return false;
+  }
+  
+  /**
+   * Writes the output of the grouped task to the enclosing destination.
+   */
+  private void publish(Task task) {
+    final Task destination = destination(task.parent);
+    noLongerLeaf(destination);
+    task.group.publish(new LogWriter() {
+      @Override
+      public void write(PrintStream stream, String text) {
+        Log.this.write(destination, stream, text);
+      }
+      
+      @Override
+      public void flush() {
+      }
+    });
+  }
+  
+  /**
+   * Registers a listener that is notified of all tasks, whether displayed or
+   * not.
+   */
+  public void addTaskListener(TaskListener listener) {
+    listeners.add(listener);
+  }
+  
+  public void removeTaskListener(TaskListener listener) {
+    listeners.remove(listener);
+  }
+  
   public long endTask() {
     return endTask("done", BORING_DONE_MESSAGES);
   }
@@ -111,77 +394,295 @@ public class Log {
       return endTask(bad);
   }
   
+  /**
+   * Computes a message only if it is logged.
+   */
+  public static interface Message {
+    public String get();
+  }
+  
+  /**
+   * Whether messages of the level are currently logged. Takes no lock, so
+   * callers can cheaply guard the construction of expensive messages.
+   */
+  public boolean isLogging(int msglevel) {
+    return ((loglevel | sinkLevels) & msglevel) != 0 && silent.get() < 0;
+  }
+  
   public void log(Object o, int msglevel) {
-    log(o.toString(), msglevel);
+    if (isLogging(msglevel))
+      log(o.toString(), msglevel);
+  }
+  
+  public void log(String text, int msglevel) {
+    if (isLogging(msglevel) && !toSink(msglevel, false, text, 0, null, null, null))
+      log(current.get(), text, msglevel);
+  }
+  
+  public void log(Message message, int msglevel) {
+    if (isLogging(msglevel)) {
+      String text = message.get();
+      if (!toSink(msglevel, false, text, 0, null, null, null))
+        log(current.get(), text, msglevel);
+    }
+  }
+  
+  /**
+   * Logs the pattern with each <code>{}</code> replaced by the next
+   * argument. The message is only formatted if it is logged.
+   */
+  public void log(String pattern, Object arg, int msglevel) {
+    if (isLogging(msglevel) && !toSink(msglevel, false, pattern, 1, arg, null, null))
+      log(current.get(), format(pattern, arg, null, null, 1), msglevel);
+  }
+  
+  public void log(String pattern, Object arg1, Object arg2, int msglevel) {
+    if (isLogging(msglevel) && !toSink(msglevel, false, pattern, 2, arg1, arg2, null))
+      log(current.get(), format(pattern, arg1, arg2, null, 2), msglevel);
+  }
+  
+  public void log(String pattern, Object arg1, Object arg2, Object arg3, int msglevel) {
+    if (isLogging(msglevel) && !toSink(msglevel, false, pattern, 3, arg1, arg2, arg3))
+      log(current.get(), format(pattern, arg1, arg2, arg3, 3), msglevel);
+  }
+  
+  /**
+   * Passes the message to the event sink if it takes the level.
+   * 
+   * @return whether the sink took the message.
+   */
+  private boolean toSink(int msglevel, boolean error, String template, int args, Object arg1, Object arg2, Object arg3) {
+    EventSink sink = this.sink;
+    if (sink == null || (sinkLevels & msglevel) == 0)
+      return false;
+    sink.message(msglevel, error, current.get(), template, args, arg1, arg2, arg3);
+    return true;
   }
   
-  public synchronized void log(String text, int msglevel) {
-    if (silent >= 0)
+  /**
+   * Sends messages of the given levels to the sink instead of formatting
+   * them as text, whether or not the levels are enabled by
+   * {@link #setLoggingLevel(int)}. Parameterized messages reach the sink
+   * unformatted.
+   * 
+   * @param sink
+   *        the sink, or null to format all messages as text.
+   */
+  public synchronized void setEventSink(EventSink sink, int levels) {
+    this.sink = sink;
+    this.sinkLevels = sink == null ? 0 : levels;
+  }
+  
+  public EventSink getEventSink() {
+    return sink;
+  }
+  
+  private static String format(String pattern, Object arg1, Object arg2, Object arg3, int args) {
+    StringBuilder b = new StringBuilder(pattern.length() + 16 * args);
+    int start = 0;
+    for (int i = 0; i < args; i++) {
+      int hole = pattern.indexOf("{}", start);
+      if (hole < 0)
+        break;
+      b.append(pattern, start, hole).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+      start = hole + 2;
+    }
+    return b.append(pattern, start, pattern.length()).toString();
+  }
+  
+  /**
+   * Logs the text indented below the parent task.
+   */
+  private void log(Task parent, String text, int msglevel) {
+    log(parent, parent == null ? 0 : parent.depth + 1, text, msglevel);
+  }
+  
+  /**
+   * Logs the indented text to the destination of the context task.
+   */
+  private void log(Task context, int depth, String text, int msglevel) {
+    if (silent.get() >= 0)
       return;
     
     if ((loglevel & msglevel) == 0)
       return;
     
-    noLongerLeaf();
-    indent();
-    out.println(text);
+    Task destination = destination(context);
+    noLongerLeaf(destination);
+    write(destination, out, indentation(depth) + text + NL);
+  }
+  
+  public void logErr(Message message, int msglevel) {
+    if (isLogging(msglevel))
+      logErr(message.get(), msglevel);
   }
   
-  public synchronized void logErr(String text, int msglevel) {
-    if (silent >= 0)
+  public void logErr(String text, int msglevel) {
+    if (silent.get() >= 0)
+      return;
+    
+    if (toSink(msglevel, true, text, 0, null, null, null))
       return;
     
     if ((loglevel & msglevel) == 0)
       return;
     
-    noLongerLeaf();
-    indent();
-    err.println(text);
+    Task destination = destination(current.get());
+    noLongerLeaf(destination);
+    write(destination, err, indentation() + text + NL);
   }
   
-  public synchronized void logErr(String text, Exception e, int msglevel) {
-    if (silent >= 0)
+  public void logErr(String text, Exception e, int msglevel) {
+    if (silent.get() >= 0)
       return;
     
     if ((loglevel & msglevel) == 0)
       return;
     
-    noLongerLeaf();
-    indent();
-    if (text != null && !text.isEmpty())
-      err.println(text);
-    e.printStackTrace(err);
+    Task destination = destination(current.get());
+    noLongerLeaf(destination);
+    StringWriter trace = new StringWriter();
+    e.printStackTrace(new PrintWriter(trace));
+    String indentation = indentation();
+    write(destination, err, (text != null && !text.isEmpty() ? indentation + text + NL : indentation) + trace);
+  }
+  
+  /**
+   * Terminates the line of an inline task open at the destination.
+   */
+  private void noLongerLeaf(Task destination) {
+    AtomicReference<Task> openLine = openLine(destination);
+    if (openLine.get() != null && openLine.getAndSet(null) != null)
+      write(destination, out, NL);
   }
   
-  private void noLongerLeaf() {
-    if (!lightweight.isEmpty() && lightweight.peek()) {
-      lightweight.pop();
-      lightweight.push(false);
-      out.println();
+  private AtomicReference<Task> openLine(Task destination) {
+    return destination == null ? openLine : destination.openLine;
+  }
+  
+  /**
+   * @return the innermost grouped task enclosing the task whose output group
+   *         is not published yet, or null if output is written directly.
+   */
+  private static Task destination(Task task) {
+    for (Task t = task; t != null; t = t.parent)
+      if (t.group != null && !t.group.isPublished())
+        return t;
+    return null;
+  }
+  
+  /**
+   * Writes the text to the output group of the destination, or directly if
+   * the destination is null.
+   */
+  private void write(Task destination, PrintStream stream, String text) {
+    for (Task t = destination; t != null; t = destination(t.parent))
+      if (t.group.append(stream == err, text))
+        return;
+    write(stream, text);
+  }
+  
+  private void write(PrintStream stream, String text) {
+    LogWriter writer = this.writer;
+    if (writer != null)
+      writer.write(stream, text);
+    else
+      stream.print(text);
+  }
+  
+  /**
+   * Routes all output through the writer, e.g., an
+   * {@link org.sugarj.common.log.AsyncLogWriter}. Pending output of the
+   * previous writer is flushed first. The current writer is also flushed when
+   * the JVM exits.
+   * 
+   * @param writer
+   *        the new writer, or null to print directly.
+   */
+  public synchronized void setWriter(LogWriter writer) {
+    LogWriter old = this.writer;
+    this.writer = writer;
+    if (old != null)
+      old.flush();
+    
+    if (writer != null && !flushOnExit) {
+      flushOnExit = true;
+      Runtime.getRuntime().addShutdownHook(new Thread("log-flush") {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
     }
   }
+  
+  public LogWriter getWriter() {
+    return writer;
+  }
+  
+  /**
+   * Blocks until all output logged so far has been written.
+   */
+  public void flush() {
+    LogWriter writer = this.writer;
+    if (writer != null)
+      writer.flush();
+  }
 
   public void beginExecution(String prefix, int level, String... cmds) {
+    beginScopedExecution(prefix, level, cmds);
+  }
+  
+  /**
+   * Like {@link #beginExecution}, but returns the task.
+   * 
+   * @return the task, which ends when closed; null if logging is silenced.
+   */
+  public Task beginScopedExecution(String prefix, int level, String... cmds) {
+    String text = "execute " + prefix;
     if (Exec.FULL_COMMAND_LINE) {
       if (Exec.WRAP_COMMAND_LINE) {
-        beginTask("execute " + prefix, level);
+        Task task = beginTask(text, text, COLLAPSE_LEAF_TASKS, level, cmds, false, null);
         
         logCommandLine(cmds, level);
+        return task;
       } 
       else {
         StringBuilder builder = new StringBuilder();
         builder.append("execute");
         for (String cmd : cmds)
           builder.append(' ').append(cmd);
-        beginTask("execute " + prefix, builder.toString(), false, level);
+        return beginTask(text, builder.toString(), false, level, cmds, false, null);
       }
     } else if (!Exec.SUB_SILENT_EXECUTION) {
-      beginTask("execute " + prefix, level);
+      return beginTask(text, text, COLLAPSE_LEAF_TASKS, level, cmds, false, null);
     } else {
-      beginInlineTask("execute " + prefix, level);
+      return beginTask(text, text, true, level, cmds, false, null);
     }
   }
   
+  /**
+   * Begins an execution task that is not displayed, only reported to task
+   * listeners.
+   * 
+   * @return the task, or null if there are no task listeners.
+   */
+  public Task traceExecution(String prefix, String... cmds) {
+    if (listeners.isEmpty())
+      return null;
+    return beginTask("execute " + prefix, null, false, DETAIL, cmds, true, null);
+  }
+  
+  /**
+   * Like {@link #traceExecution}, but the output logged within the task is
+   * grouped as by {@link #beginGroupedTask}.
+   * 
+   * @return the task, or null if logging is silenced.
+   */
+  public Task groupExecution(String prefix, String... cmds) {
+    return beginTask("execute " + prefix, null, false, DETAIL, cmds, true, new OutputGroup());
+  }
+  
   public String commandLineAsString(String[] cmds) {
     StringBuffer buf = new StringBuffer();
     
@@ -201,6 +702,8 @@ public class Log {
   }
   
   public void logCommandLine(String[] cmds, int level) {
+    if (!isLogging(level))
+      return;
     for (int i = 0; i < cmds.length; i++) {
       if (cmds[i].startsWith("-") && i + 1 < cmds.length && !cmds[i+1].startsWith("-")) {
         log(cmds[i] + " " + cmds[i + 1], level);
@@ -215,9 +718,16 @@ public class Log {
     beginTask(text, text, true, level);
   }
 
-  private void indent() {
-    for (int i = tasks.size(); i > 0; i--)
-      out.print("  ");
+  private String indentation() {
+    Task task = current.get();
+    return indentation(task == null ? 0 : task.depth + 1);
+  }
+  
+  private static String indentation(int depth) {
+    StringBuilder b = new StringBuilder(2 * depth);
+    for (int i = depth; i > 0; i--)
+      b.append("  ");
+    return b.toString();
   }
 
   public void endExecution(int exitValue) {
@@ -232,11 +742,11 @@ public class Log {
   }
   
   public void beginSilent() {
-    silent++;
+    silent.incrementAndGet();
   }
   
   public void endSilent() {
-    silent--;
+    silent.decrementAndGet();
   }
   
   public void setLoggingLevel(int level) {
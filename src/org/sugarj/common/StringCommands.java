@@ -46,4 +46,37 @@ public class StringCommands {
       transformationPathStrings.add(makeTransformationPathString(p));
     return StringCommands.printListSeparated(transformationPathStrings, "$");
   }
+
+  /**
+   * Appends the string as a quoted JSON string literal.
+   */
+  public static void appendJsonString(StringBuilder b, String s) {
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        b.append("\\\"");
+        break;
+      case '\\':
+        b.append("\\\\");
+        break;
+      case '\n':
+        b.append("\\n");
+        break;
+      case '\r':
+        b.append("\\r");
+        break;
+      case '\t':
+        b.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          b.append(String.format("\\u%04x", (int) c));
+        else
+          b.append(c);
+      }
+    }
+    b.append('"');
+  }
 }
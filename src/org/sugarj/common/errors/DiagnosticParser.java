@@ -0,0 +1,129 @@
+package org.sugarj.common.errors;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.path.Path;
+import org.sugarj.common.util.Pair;
+
+/**
+ * Turns the diagnostics a tool prints into source-code errors while the tool
+ * runs. Install a parser with {@link Exec#setLineListener} and it consumes
+ * output lines as they arrive; with fail-fast enabled, the tool is terminated
+ * as soon as the first error has been parsed.
+ * <p>
+ * A parser reads one stream only (standard error by default), because lines
+ * of different streams arrive interleaved.
+ */
+public abstract class DiagnosticParser implements Exec.LineListener {
+
+  /**
+   * Receives errors as soon as they have been parsed.
+   */
+  public interface Listener {
+    public void error(Pair<SourceLocation, String> error);
+  }
+
+  private final File dir;
+  private final List<Pair<SourceLocation, String>> errors = new ArrayList<>();
+  private final List<Listener> listeners = new ArrayList<>();
+  private boolean readsErr = true;
+  private boolean failFast;
+
+  /**
+   * @param dir
+   *        the working directory of the tool, against which relative file
+   *        names are resolved, or null for the current directory.
+   */
+  protected DiagnosticParser(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Lets the parser read standard output instead of standard error.
+   */
+  public DiagnosticParser setReadsStdout(boolean readsStdout) {
+    this.readsErr = !readsStdout;
+    return this;
+  }
+
+  /**
+   * Terminates the tool once the first error has been parsed.
+   */
+  public DiagnosticParser setFailFast(boolean failFast) {
+    this.failFast = failFast;
+    return this;
+  }
+
+  public synchronized DiagnosticParser addListener(Listener listener) {
+    listeners.add(listener);
+    return this;
+  }
+
+  @Override
+  public synchronized boolean line(String line, boolean err) {
+    if (err == readsErr)
+      parse(line);
+    return !(failFast && !errors.isEmpty());
+  }
+
+  /**
+   * Emits an error that is still pending because the parser waited for more
+   * lines. Called when the tool's output ended.
+   */
+  public synchronized void finish() {
+    flush();
+  }
+
+  /**
+   * @return the errors parsed so far, including pending ones.
+   */
+  public synchronized List<Pair<SourceLocation, String>> getErrors() {
+    flush();
+    return Collections.unmodifiableList(new ArrayList<>(errors));
+  }
+
+  public synchronized boolean hasErrors() {
+    flush();
+    return !errors.isEmpty();
+  }
+
+  /**
+   * @throws SourceCodeException
+   *         if errors have been parsed.
+   */
+  public void check() throws SourceCodeException {
+    List<Pair<SourceLocation, String>> errors = getErrors();
+    if (!errors.isEmpty())
+      throw new SourceCodeException(errors);
+  }
+
+  /**
+   * Consumes the next line of output.
+   */
+  protected abstract void parse(String line);
+
+  /**
+   * Emits a pending error, if any.
+   */
+  protected void flush() {
+  }
+
+  protected void emit(SourceLocation location, String msg) {
+    Pair<SourceLocation, String> error = Pair.create(location, msg);
+    errors.add(error);
+    for (Listener listener : listeners)
+      listener.error(error);
+  }
+
+  protected Path resolve(String file) {
+    File f = new File(file);
+    if (!f.isAbsolute())
+      f = new File(dir, file);
+    return new AbsolutePath(f.getAbsolutePath());
+  }
+}
@@ -0,0 +1,36 @@
+package org.sugarj.common.errors;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses errors in the format of gcc and clang, which many other tools
+ * follow as well:
+ *
+ * <pre>
+ * foo.c:3:7: error: unknown type name 'bar'
+ * foo.c:3: error: unknown type name 'bar'
+ * </pre>
+ *
+ * Each error is emitted as soon as its line has been read. Warnings, notes
+ * and context lines are ignored.
+ */
+public class GccDiagnosticParser extends DiagnosticParser {
+
+  private static final Pattern DIAGNOSTIC = Pattern.compile("^(.+?):(\\d+):(?:(\\d+):)? (?:fatal )?error: (.*)$");
+
+  public GccDiagnosticParser(File dir) {
+    super(dir);
+  }
+
+  @Override
+  protected void parse(String s) {
+    Matcher m = DIAGNOSTIC.matcher(s);
+    if (!m.matches())
+      return;
+    int line = Integer.parseInt(m.group(2));
+    int column = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+    emit(new SourceLocation(resolve(m.group(1)), line, line, column, column), m.group(4));
+  }
+}
@@ -0,0 +1,61 @@
+package org.sugarj.common.errors;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses errors in the format of javac:
+ *
+ * <pre>
+ * Foo.java:3: error: cannot find symbol
+ *     Bar b;
+ *     ^
+ * </pre>
+ *
+ * An error is emitted once its column marker has been read. Detail lines
+ * following the marker (e.g., {@code symbol:}) are not part of the message.
+ * Warnings are ignored.
+ */
+public class JavacDiagnosticParser extends DiagnosticParser {
+
+  private static final Pattern HEADER = Pattern.compile("^(.+?):(\\d+): (error|warning): (.*)$");
+
+  private String file;
+  private int line;
+  private String msg;
+
+  public JavacDiagnosticParser(File dir) {
+    super(dir);
+  }
+
+  @Override
+  protected void parse(String s) {
+    Matcher m = HEADER.matcher(s);
+    if (m.matches()) {
+      flush();
+      if (m.group(3).equals("error")) {
+        file = m.group(1);
+        line = Integer.parseInt(m.group(2));
+        msg = m.group(4);
+      }
+      return;
+    }
+
+    if (msg == null)
+      return;
+    int caret = s.indexOf('^');
+    if (caret >= 0 && s.trim().equals("^")) {
+      emit(new SourceLocation(resolve(file), line, line, caret + 1, caret + 1), msg);
+      msg = null;
+    }
+  }
+
+  @Override
+  protected void flush() {
+    if (msg != null) {
+      emit(new SourceLocation(resolve(file), line, line, 0, 0), msg);
+      msg = null;
+    }
+  }
+}
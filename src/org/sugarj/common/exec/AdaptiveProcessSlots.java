@@ -0,0 +1,287 @@
+package org.sugarj.common.exec;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.Log;
+import org.sugarj.common.util.ProcessUtils;
+
+/**
+ * {@link ProcessSlots} whose number adapts to the load of the machine. Every
+ * {@link #setInterval interval}, the controller measures the load average per
+ * CPU, the fraction of available memory ({@code /proc/meminfo}), and the
+ * fraction of time runnable tasks waited for a CPU. If any of them signals
+ * overload, the limit is cut by the {@link #setDecreaseFactor decrease factor}
+ * (multiplicative decrease); otherwise, if all slots were in use, it grows by
+ * one (additive increase). The limit stays between the configured minimum and
+ * maximum.
+ * <p>
+ * Measurements that are not available on the current platform are ignored.
+ * The current decisions are available through getters and {@link #toJson()}.
+ */
+public class AdaptiveProcessSlots implements ProcessSlots, Closeable {
+
+  private static final int CPUS = Runtime.getRuntime().availableProcessors();
+
+  private final int minSlots;
+  private final int maxSlots;
+
+  private double maxLoadPerCpu = 1.5;
+  private double minAvailableMemory = 0.1;
+  private double maxRunQueueDelay = 0.5;
+  private double decreaseFactor = 0.5;
+  private long interval = 1000;
+
+  private double limit;
+  private int inUse;
+  private int waiting;
+  private boolean saturated;
+
+  private double loadPerCpu = -1;
+  private double availableMemory = -1;
+  private double runQueueDelay = -1;
+  private long lastDelayNanos = -1;
+  private long lastSampleNanos;
+  private long increases;
+  private long decreases;
+
+  private ScheduledExecutorService controller;
+
+  /**
+   * Allows between 1 and twice the number of CPUs slots, starting with the
+   * number of CPUs.
+   */
+  public AdaptiveProcessSlots() {
+    this(1, 2 * CPUS, CPUS);
+  }
+
+  public AdaptiveProcessSlots(int minSlots, int maxSlots, int initialSlots) {
+    if (minSlots < 1 || maxSlots < minSlots || initialSlots < minSlots || initialSlots > maxSlots)
+      throw new IllegalArgumentException("invalid slot bounds: " + minSlots + " <= " + initialSlots + " <= " + maxSlots);
+    this.minSlots = minSlots;
+    this.maxSlots = maxSlots;
+    this.limit = initialSlots;
+    start();
+  }
+
+  /**
+   * @param maxLoadPerCpu
+   *        load average per CPU above which the machine counts as overloaded.
+   */
+  public synchronized AdaptiveProcessSlots setMaxLoadPerCpu(double maxLoadPerCpu) {
+    this.maxLoadPerCpu = maxLoadPerCpu;
+    return this;
+  }
+
+  /**
+   * @param minAvailableMemory
+   *        fraction of total memory that must remain available.
+   */
+  public synchronized AdaptiveProcessSlots setMinAvailableMemory(double minAvailableMemory) {
+    this.minAvailableMemory = minAvailableMemory;
+    return this;
+  }
+
+  /**
+   * @param maxRunQueueDelay
+   *        fraction of time runnable tasks may wait for a CPU.
+   */
+  public synchronized AdaptiveProcessSlots setMaxRunQueueDelay(double maxRunQueueDelay) {
+    this.maxRunQueueDelay = maxRunQueueDelay;
+    return this;
+  }
+
+  public synchronized AdaptiveProcessSlots setDecreaseFactor(double decreaseFactor) {
+    if (decreaseFactor <= 0 || decreaseFactor >= 1)
+      throw new IllegalArgumentException("decrease factor must be between 0 and 1: " + decreaseFactor);
+    this.decreaseFactor = decreaseFactor;
+    return this;
+  }
+
+  /**
+   * @param interval
+   *        milliseconds between two adjustments of the limit.
+   */
+  public synchronized AdaptiveProcessSlots setInterval(long interval) {
+    if (interval <= 0)
+      throw new IllegalArgumentException("interval must be positive: " + interval);
+    this.interval = interval;
+    stop();
+    start();
+    return this;
+  }
+
+  private synchronized void start() {
+    controller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "adaptive-process-slots");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    controller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        adjust();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stop() {
+    if (controller != null)
+      controller.shutdownNow();
+    controller = null;
+  }
+
+  /**
+   * Stops adjusting the limit.
+   */
+  @Override
+  public void close() {
+    stop();
+  }
+
+  @Override
+  public synchronized Slot acquire() throws InterruptedException {
+    waiting++;
+    try {
+      while (inUse >= (int) limit) {
+        saturated = true;
+        wait();
+      }
+    } finally {
+      waiting--;
+    }
+    inUse++;
+    if (inUse >= (int) limit)
+      saturated = true;
+
+    return new Slot() {
+      private boolean released;
+
+      @Override
+      public void release() {
+        synchronized (AdaptiveProcessSlots.this) {
+          if (released)
+            return;
+          released = true;
+          inUse--;
+          AdaptiveProcessSlots.this.notifyAll();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void configure(ProcessBuilder builder) {
+  }
+
+  /**
+   * Measures the load and adjusts the limit. Called periodically.
+   */
+  public void adjust() {
+    double load = ProcessUtils.loadAverage();
+    long[] memory = ProcessUtils.memoryInfo();
+    long delayNanos = ProcessUtils.runQueueDelayNanos();
+    long now = System.nanoTime();
+
+    synchronized (this) {
+      loadPerCpu = load < 0 ? -1 : load / CPUS;
+      availableMemory = memory == null ? -1 : (double) memory[1] / memory[0];
+      runQueueDelay = delayNanos < 0 || lastDelayNanos < 0 ? -1 : (double) (delayNanos - lastDelayNanos) / (now - lastSampleNanos);
+      lastDelayNanos = delayNanos;
+      lastSampleNanos = now;
+
+      boolean overloaded = loadPerCpu > maxLoadPerCpu
+          || (availableMemory >= 0 && availableMemory < minAvailableMemory)
+          || runQueueDelay > maxRunQueueDelay;
+
+      double old = limit;
+      if (overloaded)
+        limit = Math.max(minSlots, limit * decreaseFactor);
+      else if (saturated)
+        limit = Math.min(maxSlots, Math.floor(limit) + 1);
+
+      if ((int) limit < (int) old) {
+        decreases++;
+        if (Log.log.isLogging(Log.DETAIL))
+          Log.log.log("Reduced process slots to " + (int) limit + " (load " + format(loadPerCpu) + "/cpu, memory " + format(availableMemory) + ", run-queue delay " + format(runQueueDelay) + ")", Log.DETAIL);
+      }
+      else if ((int) limit > (int) old) {
+        increases++;
+        notifyAll();
+      }
+      saturated = inUse >= (int) limit || waiting > 0;
+    }
+  }
+
+  private static String format(double d) {
+    return d < 0 ? "?" : String.format("%.2f", d);
+  }
+
+  /**
+   * @return the current number of slots.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInUse() {
+    return inUse;
+  }
+
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * @return the last measured load average per CPU, or -1 if unknown.
+   */
+  public synchronized double getLoadPerCpu() {
+    return loadPerCpu;
+  }
+
+  /**
+   * @return the last measured fraction of available memory, or -1 if
+   *         unknown.
+   */
+  public synchronized double getAvailableMemory() {
+    return availableMemory;
+  }
+
+  /**
+   * @return the last measured fraction of time runnable tasks waited for a
+   *         CPU, or -1 if unknown.
+   */
+  public synchronized double getRunQueueDelay() {
+    return runQueueDelay;
+  }
+
+  public synchronized long getIncreases() {
+    return increases;
+  }
+
+  public synchronized long getDecreases() {
+    return decreases;
+  }
+
+  public synchronized String toJson() {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"limit\": ").append((int) limit);
+    b.append(", \"minSlots\": ").append(minSlots);
+    b.append(", \"maxSlots\": ").append(maxSlots);
+    b.append(", \"inUse\": ").append(inUse);
+    b.append(", \"waiting\": ").append(waiting);
+    b.append(", \"loadPerCpu\": ").append(loadPerCpu);
+    b.append(", \"availableMemory\": ").append(availableMemory);
+    b.append(", \"runQueueDelay\": ").append(runQueueDelay);
+    b.append(", \"increases\": ").append(increases);
+    b.append(", \"decreases\": ").append(decreases);
+    b.append("}\n");
+    return b.toString();
+  }
+}
@@ -0,0 +1,266 @@
+package org.sugarj.common.exec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.util.ArrayUtils;
+
+/**
+ * Runs a command with a fixed prefix on a possibly very long list of
+ * arguments, like {@code xargs}. The arguments are split into maximal batches
+ * whose command lines fit the operating system's limit, and the batches run
+ * in parallel. Tools that read arguments from {@code @argfile}s get a single
+ * invocation with all arguments spilled into a temporary argument file
+ * instead. Either way, the result is one merged {@link ExecutionResult}.
+ */
+public class BatchExec {
+
+  /**
+   * Bytes reserved for things we do not account for, as xargs does.
+   */
+  private static final long HEADROOM = 2048;
+
+  /**
+   * Size of a pointer in the argv and envp arrays.
+   */
+  private static final int POINTER_SIZE = 8;
+
+  public final String prefix;
+  public final File dir;
+  public final String[] cmds;
+
+  private boolean silent = true;
+  private long timeout = 0;
+  private boolean argFileSupported = false;
+  private int maxParallelism = Runtime.getRuntime().availableProcessors();
+  private long commandLineLimit = defaultCommandLineLimit();
+
+  public BatchExec(String... cmds) {
+    this(cmds[0], null, cmds);
+  }
+
+  /**
+   * @param cmds
+   *        the executable and the fixed arguments that precede each batch of
+   *        arguments.
+   */
+  public BatchExec(String prefix, File dir, String... cmds) {
+    this.prefix = prefix;
+    this.dir = dir;
+    this.cmds = cmds;
+  }
+
+  public BatchExec setSilent(boolean silent) {
+    this.silent = silent;
+    return this;
+  }
+
+  /**
+   * @param timeout
+   *        milliseconds after which each single invocation is terminated, or 0
+   *        for no timeout.
+   */
+  public BatchExec setTimeout(long timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  /**
+   * Tells whether the tool reads {@code @file} arguments (e.g., javac, java,
+   * gcc). Argument files use double quotes around arguments containing white
+   * space, quotes or backslashes, and escape quotes and backslashes with a
+   * backslash.
+   */
+  public BatchExec setArgFileSupported(boolean argFileSupported) {
+    this.argFileSupported = argFileSupported;
+    return this;
+  }
+
+  public BatchExec setMaxParallelism(int maxParallelism) {
+    if (maxParallelism < 1)
+      throw new IllegalArgumentException("maximal parallelism must be positive: " + maxParallelism);
+    this.maxParallelism = maxParallelism;
+    return this;
+  }
+
+  /**
+   * @param limit
+   *        the number of bytes available for the command line, see
+   *        {@link #defaultCommandLineLimit()}.
+   */
+  public BatchExec setCommandLineLimit(long limit) {
+    this.commandLineLimit = limit;
+    return this;
+  }
+
+  /**
+   * Estimates the space available for command lines: 32K characters on
+   * Windows, otherwise ARG_MAX (2M on Linux, 1M on Mac OS) minus the space
+   * the environment occupies and some headroom.
+   */
+  public static long defaultCommandLineLimit() {
+    if (FileCommands.WINDOWS)
+      return 32767 - HEADROOM;
+
+    long argMax = FileCommands.OS_NAME.contains("mac") ? 1 << 20 : 2 << 20;
+    long env = 0;
+    for (Map.Entry<String, String> e : System.getenv().entrySet())
+      env += e.getKey().length() + e.getValue().length() + 2 + POINTER_SIZE;
+    return argMax - env - HEADROOM;
+  }
+
+  private static long argumentSize(String arg) {
+    if (FileCommands.WINDOWS)
+      // separator and quotes
+      return arg.length() + 3;
+    // zero-terminated UTF-8 string and argv pointer
+    return arg.getBytes(StandardCharsets.UTF_8).length + 1 + POINTER_SIZE;
+  }
+
+  /**
+   * Splits the arguments into consecutive batches that, together with the
+   * fixed command prefix, fit the command-line limit. An argument that alone
+   * exceeds the limit forms a batch of its own.
+   */
+  public List<List<String>> batches(List<String> args) {
+    long fixed = 0;
+    for (String cmd : cmds)
+      fixed += argumentSize(cmd);
+
+    List<List<String>> batches = new ArrayList<>();
+    List<String> batch = new ArrayList<>();
+    long size = fixed;
+    for (String arg : args) {
+      long argSize = argumentSize(arg);
+      if (!batch.isEmpty() && size + argSize > commandLineLimit) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        size = fixed;
+      }
+      batch.add(arg);
+      size += argSize;
+    }
+    if (!batch.isEmpty() || batches.isEmpty())
+      batches.add(batch);
+    return batches;
+  }
+
+  public ExecutionResult run(List<String> args) {
+    List<List<String>> batches = batches(args);
+    if (batches.size() == 1)
+      return new Exec(silent, timeout).runWithPrefix(prefix, dir, command(args));
+    if (argFileSupported)
+      return runWithArgFile(args);
+    return runParallel(args, batches);
+  }
+
+  private String[] command(List<String> args) {
+    return ArrayUtils.arrayConcat(cmds, args.toArray(new String[args.size()]));
+  }
+
+  private ExecutionResult runWithArgFile(List<String> args) {
+    File argFile = null;
+    try {
+      argFile = FileCommands.newTempFile("args").getFile();
+      List<String> lines = new ArrayList<>(args.size());
+      for (String arg : args)
+        lines.add(quoteArgFileArgument(arg));
+      Files.write(argFile.toPath(), lines, StandardCharsets.UTF_8);
+
+      ExecutionResult result = new Exec(silent, timeout).runWithPrefix(prefix, dir, ArrayUtils.arrayConcat(cmds, new String[] {"@" + argFile.getAbsolutePath()}));
+      return new ExecutionResult(command(args), result.getOutLines(), result.getErrLines(), result.metrics);
+    } catch (IOException e) {
+      throw new ExecutionError("problems while writing argument file for " + prefix + ": " + e.getMessage(), command(args), null, null, e);
+    } finally {
+      if (argFile != null)
+        argFile.delete();
+    }
+  }
+
+  static String quoteArgFileArgument(String arg) {
+    boolean quote = arg.isEmpty();
+    for (int i = 0; i < arg.length() && !quote; i++) {
+      char c = arg.charAt(i);
+      quote = Character.isWhitespace(c) || c == '"' || c == '\'' || c == '\\' || c == '#';
+    }
+    if (!quote)
+      return arg;
+
+    StringBuilder b = new StringBuilder(arg.length() + 2);
+    b.append('"');
+    for (int i = 0; i < arg.length(); i++) {
+      char c = arg.charAt(i);
+      if (c == '"' || c == '\\')
+        b.append('\\');
+      b.append(c);
+    }
+    b.append('"');
+    return b.toString();
+  }
+
+  private ExecutionResult runParallel(List<String> args, List<List<String>> batches) {
+    long start = System.nanoTime();
+    ExecScheduler scheduler = new ExecScheduler(maxParallelism);
+    try {
+      List<ExecJob> jobs = new ArrayList<>(batches.size());
+      for (int i = 0; i < batches.size(); i++)
+        jobs.add(new ExecJob(prefix + " [" + (i + 1) + "/" + batches.size() + "]", dir, command(batches.get(i))).setSilent(silent).setTimeout(timeout));
+      List<ExecFuture> futures = scheduler.submitAll(jobs);
+
+      List<String> outMsgs = new ArrayList<>();
+      List<String> errMsgs = new ArrayList<>();
+      List<ExecutionMetrics> metrics = new ArrayList<>();
+      ExecutionError failure = null;
+      int failedBatch = -1;
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          ExecutionResult result = futures.get(i).getResult();
+          outMsgs.addAll(result.getOutLines());
+          errMsgs.addAll(result.getErrLines());
+          if (result.metrics != null)
+            metrics.add(result.metrics);
+        } catch (ExecutionError e) {
+          if (e.outMsgs != null)
+            outMsgs.addAll(Arrays.asList(e.outMsgs));
+          if (e.errMsgs != null)
+            errMsgs.addAll(Arrays.asList(e.errMsgs));
+          if (failure == null) {
+            failure = e;
+            failedBatch = i + 1;
+          }
+        }
+      }
+
+      String[] allCmds = command(args);
+      String[] out = outMsgs.toArray(new String[outMsgs.size()]);
+      String[] err = errMsgs.toArray(new String[errMsgs.size()]);
+      if (failure != null)
+        throw new ExecutionError("Command failed in batch " + failedBatch + " of " + batches.size(), allCmds, out, err, failure);
+      return new ExecutionResult(allCmds, out, err, merge(System.nanoTime() - start, metrics));
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  private static ExecutionMetrics merge(long wallTimeNanos, List<ExecutionMetrics> metrics) {
+    long user = 0, system = 0, peak = -1, out = 0, err = 0;
+    for (ExecutionMetrics m : metrics) {
+      user += Math.max(0, m.userCpuNanos);
+      system += Math.max(0, m.systemCpuNanos);
+      peak = Math.max(peak, m.peakResidentSetSize);
+      out += m.outBytes;
+      err += m.errBytes;
+    }
+    return new ExecutionMetrics(wallTimeNanos, user, system, peak, out, err);
+  }
+}
@@ -0,0 +1,35 @@
+package org.sugarj.common.exec;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A stand-in worker for {@link WorkerPool} that answers each request with its
+ * arguments as output lines. A request whose first argument is
+ * {@code --exit=N} exits with value N instead of 0; that argument is not
+ * echoed, later {@code --exit=} arguments are.
+ * <p>
+ * Start a pool of echo workers with
+ * {@code new WorkerPool("java", "-cp", classpath, EchoWorker.class.getName())}.
+ */
+public class EchoWorker {
+  private static final String EXIT_PREFIX = "--exit=";
+
+  public static void main(String[] args) throws IOException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    WorkerProtocol.serveStdio(new WorkerProtocol.Handler() {
+      @Override
+      public int handle(String[] args, List<String> outMsgs, List<String> errMsgs) {
+        int exitValue = 0;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith(EXIT_PREFIX)) {
+          exitValue = Integer.parseInt(args[0].substring(EXIT_PREFIX.length()));
+          first = 1;
+        }
+        for (int i = first; i < args.length; i++)
+          outMsgs.add(args[i]);
+        return exitValue;
+      }
+    }, threads);
+  }
+}
@@ -0,0 +1,267 @@
+package org.sugarj.common.exec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+/**
+ * Persistent memoization of deterministic external commands. A command is
+ * identified by its command line, its working directory, the values of
+ * selected environment variables, and the content of its declared input
+ * files. On a cache hit, the recorded {@link ExecutionResult} is returned and
+ * the declared output files are restored instead of running the command;
+ * outputs the command did not produce are deleted.
+ * <p>
+ * Only successful executions are cached. Each entry is a directory below the
+ * cache directory that is published atomically once complete, so concurrent
+ * builds sharing a cache directory never observe partial entries.
+ */
+public class ExecCache {
+
+  private static final String RESULT_FILE = "result.ser";
+  private static final String OUTPUT_PREFIX = "out-";
+
+  private final File cacheDir;
+
+  public ExecCache(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * Runs the job unless an execution with the same key has been cached.
+   *
+   * @param inputs
+   *        files or directories whose content the command reads
+   * @param outputs
+   *        files or directories the command writes; they are stored in and
+   *        restored from the cache
+   * @param environment
+   *        names of the environment variables that influence the command
+   */
+  public ExecutionResult run(ExecJob job, Collection<File> inputs, Collection<File> outputs, String... environment) {
+    String key;
+    try {
+      key = key(job, inputs, outputs, environment);
+    } catch (IOException e) {
+      if (Exec.CACHE_INFO)
+        Log.log.log("Cannot compute cache key for {}: {}", job.prefix, e.getMessage(), Log.CACHING);
+      return execute(job);
+    }
+
+    File entry = entryDir(key);
+    ExecutionResult cached = restore(entry, outputs);
+    if (cached != null) {
+      if (Exec.CACHE_INFO)
+        Log.log.log("Cache hit for {}", job.prefix, Log.CACHING);
+      return cached;
+    }
+
+    if (Exec.CACHE_INFO)
+      Log.log.log("Cache miss for {}", job.prefix, Log.CACHING);
+
+    ExecutionResult result = execute(job);
+    try {
+      store(entry, result, outputs);
+    } catch (IOException e) {
+      if (Exec.CACHE_INFO)
+        Log.log.log("Failed to cache result of {}: {}", job.prefix, e.getMessage(), Log.CACHING);
+    }
+    return result;
+  }
+
+  public ExecutionResult run(ExecJob job, Collection<File> inputs, Collection<File> outputs) {
+    return run(job, inputs, outputs, new String[0]);
+  }
+
+  /**
+   * Deletes all cached entries.
+   */
+  public void clear() throws IOException {
+    if (cacheDir.exists())
+      FileCommands.delete(cacheDir);
+  }
+
+  protected ExecutionResult execute(ExecJob job) {
+    return new Exec(job.isSilent(), job.getTimeout()).runWithPrefix(job.prefix, job.dir, job.cmds);
+  }
+
+  private File entryDir(String key) {
+    return new File(new File(cacheDir, key.substring(0, 2)), key);
+  }
+
+  private ExecutionResult restore(File entry, Collection<File> outputs) {
+    File resultFile = new File(entry, RESULT_FILE);
+    if (!resultFile.isFile())
+      return null;
+
+    try {
+      ExecutionResult result;
+      try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(resultFile)))) {
+        result = (ExecutionResult) in.readObject();
+      }
+
+      int i = 0;
+      for (File output : outputs) {
+        File stored = new File(entry, OUTPUT_PREFIX + i++);
+        if (output.exists())
+          FileCommands.delete(output);
+        // the execution did not produce this output
+        if (!stored.exists())
+          continue;
+        if (stored.isDirectory())
+          FileCommands.copyDirectory(stored, output);
+        else {
+          FileCommands.createFile(output);
+          FileCommands.copyFile(stored, output);
+        }
+      }
+      return result;
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      if (Exec.CACHE_INFO)
+        Log.log.log("Ignoring unreadable cache entry {}: {}", entry, e.getMessage(), Log.CACHING);
+      return null;
+    }
+  }
+
+  private void store(File entry, ExecutionResult result, Collection<File> outputs) throws IOException {
+    File parent = entry.getParentFile();
+    FileCommands.createDir(parent);
+    File tmp = Files.createTempDirectory(parent.toPath(), entry.getName() + ".tmp").toFile();
+
+    try {
+      int i = 0;
+      for (File output : outputs) {
+        File stored = new File(tmp, OUTPUT_PREFIX + i++);
+        if (output.isDirectory())
+          FileCommands.copyDirectory(output, stored);
+        else if (output.isFile())
+          FileCommands.copyFile(output, stored);
+      }
+
+      try (OutputStream fos = Files.newOutputStream(new File(tmp, RESULT_FILE).toPath());
+           ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+        out.writeObject(result);
+      }
+
+      try {
+        Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), entry.toPath());
+      }
+    } catch (FileAlreadyExistsException e) {
+      // a concurrent build stored the same entry
+    } catch (IOException e) {
+      if (entry.exists() && new File(entry, RESULT_FILE).isFile())
+        return;
+      throw e;
+    } finally {
+      if (tmp.exists())
+        FileCommands.delete(tmp);
+    }
+  }
+
+  private static String key(ExecJob job, Collection<File> inputs, Collection<File> outputs, String[] environment) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+
+    update(digest, "cmds");
+    for (String cmd : job.cmds)
+      update(digest, cmd);
+
+    update(digest, "dir");
+    update(digest, job.dir == null ? "" : job.dir.getAbsolutePath());
+
+    update(digest, "env");
+    String[] envNames = environment.clone();
+    Arrays.sort(envNames);
+    for (String name : envNames) {
+      update(digest, name);
+      update(digest, System.getenv(name));
+    }
+
+    update(digest, "in");
+    for (File input : inputs) {
+      update(digest, input.getAbsolutePath());
+      hashContent(digest, input);
+    }
+
+    update(digest, "out");
+    for (File output : outputs)
+      update(digest, output.getAbsolutePath());
+
+    return toHex(digest.digest());
+  }
+
+  private static void hashContent(MessageDigest digest, File file) throws IOException {
+    if (file.isDirectory()) {
+      List<File> files = new ArrayList<>(FileCommands.listFilesRecursive(file));
+      Collections.sort(files);
+      for (File f : files) {
+        update(digest, f.getAbsolutePath());
+        hashContent(digest, f);
+      }
+    }
+    else if (file.isFile()) {
+      byte[] buf = new byte[8192];
+      try (InputStream in = Files.newInputStream(file.toPath())) {
+        int read;
+        while ((read = in.read(buf)) != -1)
+          digest.update(buf, 0, read);
+      }
+      digest.update((byte) 1);
+    }
+    else
+      digest.update((byte) 0);
+  }
+
+  private static void update(MessageDigest digest, String s) {
+    if (s == null) {
+      digest.update((byte) 0);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int len = bytes.length;
+    digest.update(new byte[] {1, (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+    digest.update(bytes);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder b = new StringBuilder(bytes.length * 2);
+    for (byte by : bytes) {
+      b.append(Character.forDigit((by >> 4) & 0xF, 16));
+      b.append(Character.forDigit(by & 0xF, 16));
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,170 @@
+package org.sugarj.common.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+
+/**
+ * The pending result of an external command. Listeners registered through
+ * {@link #addListener(Listener)} are notified once the command succeeded,
+ * failed or was cancelled, which allows composing further work on top of a
+ * running command without blocking a thread.
+ */
+public class ExecFuture implements Future<ExecutionResult> {
+
+  public static interface Listener {
+    public void done(ExecFuture future);
+  }
+
+  private final String prefix;
+  private final String[] cmds;
+
+  private boolean done;
+  private boolean cancelled;
+  private ExecutionResult result;
+  private Throwable failure;
+  private List<Listener> listeners = new ArrayList<>();
+
+  public ExecFuture(String prefix, String[] cmds) {
+    this.prefix = prefix;
+    this.cmds = cmds;
+  }
+
+  /**
+   * @return true iff this call completed the future.
+   */
+  public boolean complete(ExecutionResult result) {
+    synchronized (this) {
+      if (done)
+        return false;
+      this.result = result;
+      this.done = true;
+      notifyAll();
+    }
+    fireDone();
+    return true;
+  }
+
+  /**
+   * @return true iff this call completed the future.
+   */
+  public boolean fail(Throwable failure) {
+    synchronized (this) {
+      if (done)
+        return false;
+      this.failure = failure;
+      this.done = true;
+      notifyAll();
+    }
+    fireDone();
+    return true;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done)
+        return false;
+      this.cancelled = true;
+      this.done = true;
+      notifyAll();
+    }
+    fireDone();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  public synchronized boolean isFailed() {
+    return done && failure != null;
+  }
+
+  /**
+   * Registers a listener that is called once this future is done. If the
+   * future is done already, the listener is called immediately in the calling
+   * thread. Otherwise it is called in the thread that completes the future.
+   */
+  public void addListener(Listener listener) {
+    synchronized (this) {
+      if (!done) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    listener.done(this);
+  }
+
+  private void fireDone() {
+    List<Listener> toNotify;
+    synchronized (this) {
+      toNotify = listeners;
+      listeners = null;
+    }
+    for (Listener l : toNotify)
+      l.done(this);
+  }
+
+  @Override
+  public synchronized ExecutionResult get() throws InterruptedException, ExecutionException {
+    while (!done)
+      wait();
+    return report();
+  }
+
+  @Override
+  public synchronized ExecutionResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!done) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        throw new TimeoutException();
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return report();
+  }
+
+  /**
+   * Waits for the command like {@link org.sugarj.common.Exec#run} does:
+   * failures of the command are rethrown as {@link ExecutionError}.
+   */
+  public ExecutionResult getResult() {
+    try {
+      return get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ExecutionError)
+        throw (ExecutionError) e.getCause();
+      throw new ExecutionError("problems while executing " + prefix + ": " + e.getCause().getMessage(), cmds, null, null, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionError("interrupted while waiting for " + prefix, cmds, null, null, e);
+    }
+  }
+
+  private ExecutionResult report() throws ExecutionException {
+    if (cancelled)
+      throw new CancellationException(prefix);
+    if (failure != null)
+      throw new ExecutionException(failure);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "ExecFuture(" + prefix + ")";
+  }
+}
@@ -0,0 +1,48 @@
+package org.sugarj.common.exec;
+
+import java.io.File;
+
+/**
+ * Source of the standard input of an executed command. A file is attached to
+ * the process by the operating system without passing through the JVM; a byte
+ * buffer is written to the process by a background thread. To read the output
+ * of another command, run both as a pipeline, see
+ * {@link org.sugarj.common.Exec#runPipelineWithPrefix}.
+ */
+public final class ExecInput {
+
+  /**
+   * The file to read from, or null.
+   */
+  public final File file;
+
+  /**
+   * The bytes to read, or null.
+   */
+  public final byte[] bytes;
+
+  private ExecInput(File file, byte[] bytes) {
+    this.file = file;
+    this.bytes = bytes;
+  }
+
+  public static ExecInput fromFile(File file) {
+    if (file == null)
+      throw new NullPointerException("file");
+    return new ExecInput(file, null);
+  }
+
+  /**
+   * The buffer is not copied and must not be modified while the command runs.
+   */
+  public static ExecInput fromBytes(byte[] bytes) {
+    if (bytes == null)
+      throw new NullPointerException("bytes");
+    return new ExecInput(null, bytes);
+  }
+
+  @Override
+  public String toString() {
+    return file != null ? "<" + file : "<" + bytes.length + " bytes";
+  }
+}
@@ -0,0 +1,100 @@
+package org.sugarj.common.exec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An external command to be run by an {@link ExecScheduler}. Jobs form a DAG
+ * through their dependencies: a job is only started once all jobs it depends
+ * on have succeeded.
+ */
+public class ExecJob {
+  public final String prefix;
+  public final File dir;
+  public final String[] cmds;
+
+  private final List<ExecJob> dependencies = new ArrayList<>();
+  private int priority = 0;
+  private boolean silent = true;
+  private long timeout = 0;
+
+  public ExecJob(String... cmds) {
+    this(cmds[0], null, cmds);
+  }
+
+  public ExecJob(File dir, String... cmds) {
+    this(cmds[0], dir, cmds);
+  }
+
+  /**
+   * @param prefix
+   *        a short version of the command for logging purposes
+   * @param dir
+   *        the working directory of the command, or null for the current one
+   * @param cmds
+   *        the executable and its argument to execute
+   */
+  public ExecJob(String prefix, File dir, String... cmds) {
+    Objects.requireNonNull(cmds);
+    this.prefix = prefix;
+    this.dir = dir;
+    this.cmds = cmds;
+  }
+
+  public ExecJob dependsOn(ExecJob... jobs) {
+    for (ExecJob job : jobs)
+      dependencies.add(Objects.requireNonNull(job));
+    return this;
+  }
+
+  public List<ExecJob> getDependencies() {
+    return Collections.unmodifiableList(dependencies);
+  }
+
+  /**
+   * Jobs with a higher priority are started first when more jobs are ready
+   * than there are free slots. Jobs of equal priority start in submission
+   * order.
+   */
+  public ExecJob setPriority(int priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public ExecJob setSilent(boolean silent) {
+    this.silent = silent;
+    return this;
+  }
+
+  public boolean isSilent() {
+    return silent;
+  }
+
+  /**
+   * @param timeout
+   *        milliseconds after which the job's process is terminated, or 0 for
+   *        no timeout.
+   */
+  public ExecJob setTimeout(long timeout) {
+    if (timeout < 0)
+      throw new IllegalArgumentException("negative timeout: " + timeout);
+    this.timeout = timeout;
+    return this;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  @Override
+  public String toString() {
+    return prefix;
+  }
+}
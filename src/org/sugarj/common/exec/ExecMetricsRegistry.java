@@ -0,0 +1,157 @@
+package org.sugarj.common.exec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.StringCommands;
+
+/**
+ * Aggregates {@link ExecutionMetrics} per command name, so that the external
+ * tools dominating build time or memory can be identified.
+ * {@link org.sugarj.common.Exec} reports every execution to
+ * {@link #registry}.
+ */
+public class ExecMetricsRegistry {
+
+  public static final ExecMetricsRegistry registry = new ExecMetricsRegistry();
+
+  /**
+   * Aggregated metrics of all executions of one command.
+   */
+  public static class Aggregate {
+    public final String command;
+    private int count;
+    private int failures;
+    private long wallTimeNanos;
+    private long userCpuNanos;
+    private long systemCpuNanos;
+    private long maxPeakResidentSetSize = -1;
+    private long outBytes;
+    private long errBytes;
+
+    private Aggregate(String command) {
+      this.command = command;
+    }
+
+    private Aggregate(Aggregate other) {
+      this.command = other.command;
+      this.count = other.count;
+      this.failures = other.failures;
+      this.wallTimeNanos = other.wallTimeNanos;
+      this.userCpuNanos = other.userCpuNanos;
+      this.systemCpuNanos = other.systemCpuNanos;
+      this.maxPeakResidentSetSize = other.maxPeakResidentSetSize;
+      this.outBytes = other.outBytes;
+      this.errBytes = other.errBytes;
+    }
+
+    private void add(ExecutionMetrics m, boolean success) {
+      count++;
+      if (!success)
+        failures++;
+      wallTimeNanos += m.wallTimeNanos;
+      userCpuNanos += Math.max(0, m.userCpuNanos);
+      systemCpuNanos += Math.max(0, m.systemCpuNanos);
+      maxPeakResidentSetSize = Math.max(maxPeakResidentSetSize, m.peakResidentSetSize);
+      outBytes += m.outBytes;
+      errBytes += m.errBytes;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public int getFailures() {
+      return failures;
+    }
+
+    public long getWallTimeNanos() {
+      return wallTimeNanos;
+    }
+
+    public long getUserCpuNanos() {
+      return userCpuNanos;
+    }
+
+    public long getSystemCpuNanos() {
+      return systemCpuNanos;
+    }
+
+    public long getMaxPeakResidentSetSize() {
+      return maxPeakResidentSetSize;
+    }
+
+    public long getOutBytes() {
+      return outBytes;
+    }
+
+    public long getErrBytes() {
+      return errBytes;
+    }
+  }
+
+  private final Map<String, Aggregate> aggregates = new TreeMap<>();
+
+  public synchronized void record(String command, ExecutionMetrics metrics, boolean success) {
+    Aggregate a = aggregates.get(command);
+    if (a == null) {
+      a = new Aggregate(command);
+      aggregates.put(command, a);
+    }
+    a.add(metrics, success);
+  }
+
+  /**
+   * @return a copy of the aggregated metrics of the command, or null if the
+   *         command was not executed.
+   */
+  public synchronized Aggregate get(String command) {
+    Aggregate a = aggregates.get(command);
+    return a == null ? null : new Aggregate(a);
+  }
+
+  /**
+   * @return a copy of all aggregated metrics, sorted by command name.
+   */
+  public synchronized Map<String, Aggregate> snapshot() {
+    Map<String, Aggregate> copy = new TreeMap<>();
+    for (Aggregate a : aggregates.values())
+      copy.put(a.command, new Aggregate(a));
+    return copy;
+  }
+
+  public synchronized void clear() {
+    aggregates.clear();
+  }
+
+  public String toJson() {
+    StringBuilder b = new StringBuilder();
+    b.append("{\n  \"commands\": {");
+    boolean first = true;
+    for (Aggregate a : snapshot().values()) {
+      b.append(first ? "\n" : ",\n");
+      first = false;
+      b.append("    ");
+      StringCommands.appendJsonString(b, a.command);
+      b.append(": {");
+      b.append("\"count\": ").append(a.count);
+      b.append(", \"failures\": ").append(a.failures);
+      b.append(", \"wallTimeNanos\": ").append(a.wallTimeNanos);
+      b.append(", \"userCpuNanos\": ").append(a.userCpuNanos);
+      b.append(", \"systemCpuNanos\": ").append(a.systemCpuNanos);
+      b.append(", \"maxPeakResidentSetSize\": ").append(a.maxPeakResidentSetSize);
+      b.append(", \"outBytes\": ").append(a.outBytes);
+      b.append(", \"errBytes\": ").append(a.errBytes);
+      b.append("}");
+    }
+    b.append(first ? "}\n}\n" : "\n  }\n}\n");
+    return b.toString();
+  }
+
+  public void writeJson(File file) throws IOException {
+    FileCommands.writeToFile(file, toJson());
+  }
+}
@@ -0,0 +1,306 @@
+package org.sugarj.common.exec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.Exec.NonBlockingExecutionResult;
+import org.sugarj.common.Log;
+
+/**
+ * Runs a DAG of {@link ExecJob}s with a bounded number of concurrently running
+ * processes. Ready jobs are started in order of their priority; a job becomes
+ * ready once all of its dependencies have succeeded. If a job fails, all jobs
+ * depending on it fail as well. In fail-fast mode, a failure additionally
+ * cancels all other pending jobs and kills all running processes.
+ */
+public class ExecScheduler {
+
+  private class Node implements Comparable<Node> {
+    final ExecJob job;
+    final ExecFuture future;
+    final long seq;
+    final List<Node> dependents = new ArrayList<>();
+
+    /**
+     * The task of the submitting thread, which the job runs in.
+     */
+    final Log.Task task = Log.log.currentTask();
+    int pendingDependencies;
+    NonBlockingExecutionResult running;
+
+    Node(ExecJob job, long seq) {
+      this.job = job;
+      this.seq = seq;
+      this.future = new ExecFuture(job.prefix, job.cmds);
+    }
+
+    @Override
+    public int compareTo(Node other) {
+      if (job.getPriority() != other.job.getPriority())
+        return job.getPriority() > other.job.getPriority() ? -1 : 1;
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+  }
+
+  private final Map<ExecJob, Node> nodes = new IdentityHashMap<>();
+  private final PriorityQueue<Node> ready = new PriorityQueue<>();
+  private final Set<Node> started = new HashSet<>();
+  private final ExecutorService workers;
+
+  private int maxParallelism;
+  private boolean failFast;
+  private long nextSeq;
+  private int unfinished;
+
+  public ExecScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public ExecScheduler(int maxParallelism) {
+    if (maxParallelism < 1)
+      throw new IllegalArgumentException("maximal parallelism must be positive: " + maxParallelism);
+    this.maxParallelism = maxParallelism;
+    this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "exec-scheduler-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public synchronized int getMaxParallelism() {
+    return maxParallelism;
+  }
+
+  public void setMaxParallelism(int maxParallelism) {
+    if (maxParallelism < 1)
+      throw new IllegalArgumentException("maximal parallelism must be positive: " + maxParallelism);
+    synchronized (this) {
+      this.maxParallelism = maxParallelism;
+      dispatch();
+    }
+  }
+
+  public synchronized boolean isFailFast() {
+    return failFast;
+  }
+
+  /**
+   * If set, the first failing job cancels all other jobs of this scheduler.
+   */
+  public synchronized void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * Submits a job together with all of its (transitive) dependencies that
+   * have not been submitted yet. Submitting a job twice yields the same
+   * future.
+   *
+   * @throws IllegalArgumentException
+   *         if the dependencies of the job are cyclic.
+   */
+  public ExecFuture submit(ExecJob job) {
+    synchronized (this) {
+      Node node = submit(job, new HashSet<ExecJob>());
+      dispatch();
+      return node.future;
+    }
+  }
+
+  public List<ExecFuture> submitAll(Collection<ExecJob> jobs) {
+    List<ExecFuture> futures = new ArrayList<>(jobs.size());
+    synchronized (this) {
+      for (ExecJob job : jobs)
+        futures.add(submit(job, new HashSet<ExecJob>()).future);
+      dispatch();
+    }
+    return futures;
+  }
+
+  private Node submit(ExecJob job, Set<ExecJob> visiting) {
+    Node node = nodes.get(job);
+    if (node != null)
+      return node;
+
+    if (!visiting.add(job))
+      throw new IllegalArgumentException("Cyclic job dependencies involving " + job);
+
+    List<Node> deps = new ArrayList<>();
+    for (ExecJob dep : job.getDependencies())
+      deps.add(submit(dep, visiting));
+    visiting.remove(job);
+
+    node = new Node(job, nextSeq++);
+    nodes.put(job, node);
+    unfinished++;
+
+    final Node finalNode = node;
+    node.future.addListener(new ExecFuture.Listener() {
+      @Override
+      public void done(ExecFuture future) {
+        finished(finalNode);
+      }
+    });
+
+    for (Node dep : deps) {
+      if (dep.future.isDone() && !dep.future.isFailed() && !dep.future.isCancelled())
+        continue;
+      if (dep.future.isDone()) {
+        node.future.fail(dependencyFailed(job, dep));
+        return node;
+      }
+      node.pendingDependencies++;
+      dep.dependents.add(node);
+    }
+
+    if (node.pendingDependencies == 0)
+      ready.add(node);
+    return node;
+  }
+
+  private void dispatch() {
+    while (started.size() < maxParallelism && !ready.isEmpty()) {
+      final Node node = ready.poll();
+      if (node.future.isDone())
+        continue;
+      started.add(node);
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          execute(node);
+        }
+      });
+    }
+  }
+
+  private void execute(Node node) {
+    ExecJob job = node.job;
+    Log.Attachment attachment = Log.log.attach(node.task);
+    try {
+      NonBlockingExecutionResult running = new Exec(job.isSilent(), job.getTimeout()).runNonBlockingWithPrefix(job.prefix, job.dir, job.cmds);
+      boolean cancelled;
+      synchronized (this) {
+        node.running = running;
+        cancelled = node.future.isDone();
+      }
+      if (cancelled) {
+        running.kill();
+        return;
+      }
+
+      running.waitForExit();
+      node.future.complete(new ExecutionResult(job.cmds, running.getOutLines(), running.getErrLines(), running.metrics));
+    } catch (Throwable t) {
+      node.future.fail(t);
+    } finally {
+      synchronized (this) {
+        started.remove(node);
+        node.running = null;
+        dispatch();
+      }
+      attachment.close();
+    }
+  }
+
+  private void finished(Node node) {
+    synchronized (this) {
+      unfinished--;
+      boolean success = !node.future.isFailed() && !node.future.isCancelled();
+
+      if (!success && node.running != null)
+        kill(node.running);
+
+      for (Node dependent : node.dependents) {
+        if (success) {
+          if (--dependent.pendingDependencies == 0 && !dependent.future.isDone())
+            ready.add(dependent);
+        }
+        else
+          dependent.future.fail(dependencyFailed(dependent.job, node));
+      }
+
+      if (node.future.isFailed() && failFast)
+        for (Node other : nodes.values())
+          if (!other.future.isDone())
+            other.future.cancel(true);
+
+      dispatch();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Kills the process in a worker thread, because finished() may be called
+   * while holding the scheduler lock and killing waits for the process.
+   */
+  private void kill(final NonBlockingExecutionResult running) {
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          running.kill();
+        } catch (ExecutionError e) {
+          // the failure is reported through the job's future
+        }
+      }
+    });
+  }
+
+  private ExecutionError dependencyFailed(ExecJob job, Node dep) {
+    Throwable cause = null;
+    try {
+      dep.future.get();
+    } catch (Exception e) {
+      cause = e.getCause() == null ? e : e.getCause();
+    }
+    return new ExecutionError("dependency " + dep.job.prefix + " of " + job.prefix + " failed", job.cmds, null, null, cause);
+  }
+
+  /**
+   * Cancels all pending jobs and kills all running processes.
+   */
+  public void cancelAll() {
+    List<ExecFuture> futures;
+    synchronized (this) {
+      futures = new ArrayList<>(nodes.size());
+      for (Node node : nodes.values())
+        futures.add(node.future);
+    }
+    for (ExecFuture future : futures)
+      future.cancel(true);
+  }
+
+  /**
+   * Blocks until all submitted jobs are done.
+   */
+  public synchronized void awaitAll() throws InterruptedException {
+    while (unfinished > 0)
+      wait();
+  }
+
+  /**
+   * Cancels all remaining jobs and releases the worker threads of this
+   * scheduler.
+   */
+  public void shutdown() {
+    cancelAll();
+    workers.shutdown();
+  }
+}
@@ -0,0 +1,163 @@
+package org.sugarj.common.exec;
+
+import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.util.ProcessUtils;
+
+/**
+ * Resources used by a single execution of an external command. Values that
+ * could not be determined on the current platform are -1.
+ * <p>
+ * CPU times and the peak resident set size are read from {@code /proc} while
+ * the process runs, because the kernel drops that information once the
+ * process has been reaped. They are therefore sampled every
+ * {@link #SAMPLE_INTERVAL} milliseconds and may miss the work of the last
+ * interval. CPU times include children the process waited for.
+ */
+public class ExecutionMetrics implements Serializable {
+  private static final long serialVersionUID = -2716830925744611406L;
+
+  /**
+   * Milliseconds between two samples of a running process.
+   */
+  public static long SAMPLE_INTERVAL = 100;
+
+  public final long wallTimeNanos;
+  public final long userCpuNanos;
+  public final long systemCpuNanos;
+  public final long peakResidentSetSize;
+  public final long outBytes;
+  public final long errBytes;
+
+  public ExecutionMetrics(long wallTimeNanos, long userCpuNanos, long systemCpuNanos, long peakResidentSetSize, long outBytes, long errBytes) {
+    this.wallTimeNanos = wallTimeNanos;
+    this.userCpuNanos = userCpuNanos;
+    this.systemCpuNanos = systemCpuNanos;
+    this.peakResidentSetSize = peakResidentSetSize;
+    this.outBytes = outBytes;
+    this.errBytes = errBytes;
+  }
+
+  /**
+   * @return user plus system CPU time, or -1 if unknown.
+   */
+  public long cpuNanos() {
+    if (userCpuNanos < 0)
+      return -1;
+    return userCpuNanos + Math.max(0, systemCpuNanos);
+  }
+
+  @Override
+  public String toString() {
+    return "wall " + wallTimeNanos / 1000000 + "ms, user " + millis(userCpuNanos) + ", sys " + millis(systemCpuNanos)
+        + ", peak RSS " + (peakResidentSetSize < 0 ? "?" : peakResidentSetSize / 1024 + "kB")
+        + ", out " + outBytes + "B, err " + errBytes + "B";
+  }
+
+  private static String millis(long nanos) {
+    return nanos < 0 ? "?" : nanos / 1000000 + "ms";
+  }
+
+  private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "exec-metrics-sampler");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * Starts recording the metrics of a process that has just been started.
+   */
+  public static Recorder record(Process p) {
+    return new Recorder(p, System.nanoTime());
+  }
+
+  /**
+   * Samples a running process until {@link #finish(long, long)} or
+   * {@link #cancel()} is called, or until the process terminated.
+   */
+  public static class Recorder implements Runnable {
+    private final Process p;
+    private final long pid;
+    private final long startNanos;
+    private ScheduledFuture<?> sampling;
+    private boolean stopped;
+
+    private long userCpuNanos = -1;
+    private long systemCpuNanos = -1;
+    private long peakResidentSetSize = -1;
+
+    public Recorder(Process p, long startNanos) {
+      this.p = p;
+      this.pid = ProcessUtils.pid(p);
+      this.startNanos = startNanos;
+      synchronized (this) {
+        run();
+        if (pid >= 0 && !stopped)
+          this.sampling = sampler.scheduleWithFixedDelay(this, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    @Override
+    public synchronized void run() {
+      if (stopped)
+        return;
+      if (terminated(p)) {
+        // the pid may be reused by another process
+        cancel();
+        return;
+      }
+      long[] cpu = ProcessUtils.cpuTimes(pid);
+      if (cpu != null) {
+        userCpuNanos = Math.max(userCpuNanos, cpu[0]);
+        systemCpuNanos = Math.max(systemCpuNanos, cpu[1]);
+      }
+      peakResidentSetSize = Math.max(peakResidentSetSize, ProcessUtils.peakResidentSetSize(pid));
+    }
+
+    private static boolean terminated(Process p) {
+      try {
+        p.exitValue();
+        return true;
+      } catch (IllegalThreadStateException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Stops sampling the process without computing metrics, e.g., when
+     * execution failed or its result is abandoned.
+     */
+    public synchronized void cancel() {
+      stopped = true;
+      if (sampling != null)
+        sampling.cancel(false);
+    }
+
+    /**
+     * Stops sampling the (terminated) process.
+     */
+    public synchronized ExecutionMetrics finish(long outBytes, long errBytes) {
+      long wall = System.nanoTime() - startNanos;
+      cancel();
+
+      long user = userCpuNanos;
+      long system = systemCpuNanos;
+      if (user < 0) {
+        long total = ProcessUtils.totalCpuTime(p);
+        if (total >= 0) {
+          user = total;
+          system = -1;
+        }
+      }
+      return new ExecutionMetrics(wall, user, system, peakResidentSetSize, outBytes, errBytes);
+    }
+  }
+}
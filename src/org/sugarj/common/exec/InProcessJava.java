@@ -0,0 +1,430 @@
+package org.sugarj.common.exec;
+
+import static org.sugarj.common.Log.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.FileCommands;
+import org.sugarj.common.Log;
+
+/**
+ * Runs Java tools inside the current JVM instead of forking a new one. Two
+ * kinds of commands are supported:
+ * <ul>
+ * <li>commands naming a {@code java.util.spi.ToolProvider} tool (e.g.
+ * {@code javac} or {@code jar}) when running on Java 9 or later, and</li>
+ * <li>{@code java [-cp classpath] [-XssN] MainClass args...} for main classes
+ * registered through {@link #allowMainClass(String)}.</li>
+ * </ul>
+ * Main classes are loaded through an isolated class loader that is cached per
+ * classpath, so repeated invocations neither create a process nor load the
+ * tool's classes again. Output written to {@link System#out} and
+ * {@link System#err} by the executing thread is captured; output of threads
+ * it starts goes to the original streams.
+ * <p>
+ * Main classes must not call {@link System#exit(int)}, because that would
+ * terminate the current JVM. Only allow main classes that return normally.
+ */
+public class InProcessJava {
+
+  private static final Class<?> TOOL_PROVIDER;
+  private static final Method FIND_FIRST;
+  private static final Method TOOL_RUN;
+  private static final Method OPTIONAL_IS_PRESENT;
+  private static final Method OPTIONAL_GET;
+
+  static {
+    Class<?> toolProvider = null;
+    Method findFirst = null;
+    Method run = null;
+    Method isPresent = null;
+    Method get = null;
+    try {
+      toolProvider = Class.forName("java.util.spi.ToolProvider");
+      findFirst = toolProvider.getMethod("findFirst", String.class);
+      run = toolProvider.getMethod("run", PrintStream.class, PrintStream.class, String[].class);
+      Class<?> optional = Class.forName("java.util.Optional");
+      isPresent = optional.getMethod("isPresent");
+      get = optional.getMethod("get");
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      toolProvider = null;
+    }
+    TOOL_PROVIDER = toolProvider;
+    FIND_FIRST = findFirst;
+    TOOL_RUN = run;
+    OPTIONAL_IS_PRESENT = isPresent;
+    OPTIONAL_GET = get;
+  }
+
+  private static final Object NO_TOOL = new Object();
+  private static final ConcurrentMap<String, Object> tools = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, URLClassLoader> classLoaders = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Method> mainMethods = new ConcurrentHashMap<>();
+  private static final Set<String> allowedMainClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Allows running the main class in-process. The main method of the class
+   * must not call {@link System#exit(int)} and must not depend on JVM options
+   * other than the classpath and stack size.
+   */
+  public static void allowMainClass(String className) {
+    allowedMainClasses.add(className);
+  }
+
+  public static void disallowMainClass(String className) {
+    allowedMainClasses.remove(className);
+  }
+
+  /**
+   * Drops all cached class loaders, e.g., after the classpath entries have
+   * been rebuilt.
+   */
+  public static void clearClassLoaders() {
+    for (URLClassLoader loader : classLoaders.values())
+      try {
+        loader.close();
+      } catch (IOException e) {
+        // ignore, we drop the loader anyway
+      }
+    classLoaders.clear();
+    mainMethods.clear();
+  }
+
+  /**
+   * Runs the command in-process if possible.
+   *
+   * @param dir
+   *        the working directory of the command; in-process execution is only
+   *        possible for the current working directory (null).
+   * @param cmds
+   *        the command; in-process execution is only possible if the
+   *        executable is a bare tool name or lies within the running JVM's
+   *        {@code java.home}.
+   * @return the result of the command, or null if the command cannot be run
+   *         in-process and must be forked.
+   * @throws ExecutionError
+   *         if the command ran in-process and failed.
+   */
+  public static ExecutionResult tryRun(String prefix, File dir, boolean silent, String... cmds) {
+    if (cmds.length == 0 || dir != null && !dir.getAbsoluteFile().equals(new File(System.getProperty("user.dir")).getAbsoluteFile()))
+      return null;
+
+    if (!isRunningJdkExecutable(cmds[0]))
+      return null;
+
+    String command = FileCommands.fileName(cmds[0]);
+    if (command.equals("java"))
+      return tryRunMain(prefix, silent, cmds);
+
+    Object tool = findTool(command);
+    if (tool == null)
+      return null;
+    return runTool(prefix, silent, tool, cmds);
+  }
+
+  /**
+   * @return true if the executable is a bare name or resolves to a file
+   *         within {@code java.home}; any other path may name a different JDK.
+   */
+  private static boolean isRunningJdkExecutable(String executable) {
+    if (executable.indexOf('/') < 0 && executable.indexOf(File.separatorChar) < 0)
+      return true;
+
+    try {
+      String home = new File(System.getProperty("java.home")).getCanonicalPath() + File.separator;
+      return new File(executable).getCanonicalPath().startsWith(home);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static Object findTool(String name) {
+    if (TOOL_PROVIDER == null)
+      return null;
+
+    Object tool = tools.get(name);
+    if (tool == null) {
+      tool = NO_TOOL;
+      try {
+        Object optional = FIND_FIRST.invoke(null, name);
+        if ((Boolean) OPTIONAL_IS_PRESENT.invoke(optional))
+          tool = OPTIONAL_GET.invoke(optional);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        tool = NO_TOOL;
+      }
+      tools.putIfAbsent(name, tool);
+    }
+    return tool == NO_TOOL ? null : tool;
+  }
+
+  private static ExecutionResult runTool(final String prefix, boolean silent, final Object tool, final String[] cmds) {
+    final String[] args = Arrays.copyOfRange(cmds, 1, cmds.length);
+    return capture(prefix, silent, cmds, 0, new Invocation() {
+      @Override
+      public int invoke(PrintStream out, PrintStream err) throws Throwable {
+        try {
+          return (Integer) TOOL_RUN.invoke(tool, out, err, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+  }
+
+  private static ExecutionResult tryRunMain(String prefix, boolean silent, final String[] cmds) {
+    String classpath = null;
+    long stackSize = 0;
+    int i = 1;
+    for (; i < cmds.length && cmds[i].startsWith("-"); i++) {
+      String opt = cmds[i];
+      if ((opt.equals("-cp") || opt.equals("-classpath") || opt.equals("--class-path")) && i + 1 < cmds.length)
+        classpath = cmds[++i];
+      else if (opt.startsWith("-Xss"))
+        stackSize = parseSize(opt.substring("-Xss".length()));
+      else
+        return null;
+      if (stackSize < 0)
+        return null;
+    }
+
+    if (i >= cmds.length || !allowedMainClasses.contains(cmds[i]))
+      return null;
+
+    final String mainClass = cmds[i];
+    final String[] args = Arrays.copyOfRange(cmds, i + 1, cmds.length);
+    if (classpath == null)
+      classpath = System.getenv("CLASSPATH") == null ? "." : System.getenv("CLASSPATH");
+
+    final Method main;
+    try {
+      main = mainMethod(classpath, mainClass);
+    } catch (ClassNotFoundException | NoSuchMethodException | MalformedURLException e) {
+      return null;
+    }
+
+    return capture(prefix, silent, cmds, stackSize, new Invocation() {
+      @Override
+      public int invoke(PrintStream out, PrintStream err) throws Throwable {
+        Thread current = Thread.currentThread();
+        ClassLoader previous = current.getContextClassLoader();
+        current.setContextClassLoader(main.getDeclaringClass().getClassLoader());
+        try {
+          main.invoke(null, (Object) args);
+          return 0;
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        } finally {
+          current.setContextClassLoader(previous);
+        }
+      }
+    });
+  }
+
+  private static Method mainMethod(String classpath, String mainClass) throws ClassNotFoundException, NoSuchMethodException, MalformedURLException {
+    String key = classpath + File.pathSeparator + mainClass;
+    Method main = mainMethods.get(key);
+    if (main != null)
+      return main;
+
+    Class<?> cl = Class.forName(mainClass, true, classLoader(classpath));
+    main = cl.getMethod("main", String[].class);
+    if (!Modifier.isStatic(main.getModifiers()))
+      throw new NoSuchMethodException(mainClass + ".main is not static");
+    mainMethods.putIfAbsent(key, main);
+    return main;
+  }
+
+  /**
+   * @return the cached class loader for the classpath. Its parent is the
+   *         parent of the system class loader, so the loaded classes are
+   *         isolated from the classes of the current application.
+   */
+  private static URLClassLoader classLoader(String classpath) throws MalformedURLException {
+    URLClassLoader loader = classLoaders.get(classpath);
+    if (loader != null)
+      return loader;
+
+    String[] entries = classpath.split(File.pathSeparator);
+    List<URL> urls = new ArrayList<>(entries.length);
+    for (String entry : entries)
+      if (!entry.isEmpty())
+        urls.add(new File(entry).toURI().toURL());
+
+    loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader().getParent());
+    URLClassLoader existing = classLoaders.putIfAbsent(classpath, loader);
+    if (existing != null) {
+      try {
+        loader.close();
+      } catch (IOException e) {
+      }
+      return existing;
+    }
+    return loader;
+  }
+
+  private static long parseSize(String size) {
+    if (size.isEmpty())
+      return -1;
+    long factor = 1;
+    char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+    if (unit == 'k')
+      factor = 1L << 10;
+    else if (unit == 'm')
+      factor = 1L << 20;
+    else if (unit == 'g')
+      factor = 1L << 30;
+    if (factor != 1)
+      size = size.substring(0, size.length() - 1);
+    try {
+      return Long.parseLong(size) * factor;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static interface Invocation {
+    public int invoke(PrintStream out, PrintStream err) throws Throwable;
+  }
+
+  /**
+   * Runs the invocation in a fresh thread (to honor the requested stack size)
+   * whose {@link System#out} and {@link System#err} output is captured.
+   */
+  private static ExecutionResult capture(String prefix, boolean silent, String[] cmds, long stackSize, final Invocation invocation) {
+    ThreadRoutingPrintStream.install();
+
+    final ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+    final ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(outBytes, true);
+    final PrintStream err = new PrintStream(errBytes, true);
+    final int[] exitValue = new int[1];
+    final Throwable[] failure = new Throwable[1];
+    final long[] cpu = {-1, -1};
+
+    Thread thread = new Thread(null, new Runnable() {
+      @Override
+      public void run() {
+        ThreadRoutingPrintStream.capture(out, err);
+        try {
+          exitValue[0] = invocation.invoke(out, err);
+        } catch (Throwable t) {
+          failure[0] = t;
+          t.printStackTrace(err);
+          exitValue[0] = 1;
+        } finally {
+          ThreadRoutingPrintStream.release();
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isCurrentThreadCpuTimeSupported()) {
+          long user = threads.getCurrentThreadUserTime();
+          cpu[0] = user;
+          cpu[1] = threads.getCurrentThreadCpuTime() - user;
+        }
+      }
+    }, "in-process-" + prefix, stackSize);
+
+    long start = System.nanoTime();
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionError("interrupted while executing " + prefix + " in-process", cmds, null, null, e);
+    }
+
+    out.flush();
+    err.flush();
+    ExecutionMetrics metrics = new ExecutionMetrics(System.nanoTime() - start, cpu[0], cpu[1], -1, outBytes.size(), errBytes.size());
+    ExecMetricsRegistry.registry.record(prefix, metrics, exitValue[0] == 0);
+
+    OutputLines outMsgs = lines(outBytes);
+    OutputLines errMsgs = lines(errBytes);
+
+    if (!silent)
+      for (OutputLines msgs : Arrays.asList(outMsgs, errMsgs))
+        for (String msg : msgs)
+          log.logErr(msg, Log.ALWAYS);
+
+    if (exitValue[0] != 0)
+      throw new ExecutionError("Command failed", cmds, outMsgs.toStringArray(), errMsgs.toStringArray(), failure[0]);
+    return new ExecutionResult(cmds, outMsgs, errMsgs, metrics);
+  }
+
+  private static OutputLines lines(ByteArrayOutputStream bytes) {
+    byte[] b = bytes.toByteArray();
+    return OutputLines.split(b, 0, b.length, Charset.defaultCharset());
+  }
+
+  /**
+   * Replaces {@link System#out} and {@link System#err} by streams that forward
+   * to the original streams unless the writing thread captures its output.
+   * Captures are not inherited, so threads that outlive an in-process
+   * execution never write into its finished buffers.
+   */
+  private static class ThreadRoutingPrintStream extends PrintStream {
+    private static final ThreadLocal<PrintStream[]> captures = new ThreadLocal<>();
+    private static boolean installed;
+
+    static synchronized void install() {
+      if (installed)
+        return;
+      System.setOut(new ThreadRoutingPrintStream(System.out, 0));
+      System.setErr(new ThreadRoutingPrintStream(System.err, 1));
+      installed = true;
+    }
+
+    static void capture(PrintStream out, PrintStream err) {
+      captures.set(new PrintStream[] {out, err});
+    }
+
+    static void release() {
+      captures.remove();
+    }
+
+    private ThreadRoutingPrintStream(final PrintStream original, final int index) {
+      super(new OutputStream() {
+        private OutputStream target() {
+          PrintStream[] capture = captures.get();
+          return capture == null ? original : capture[index];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          target().flush();
+        }
+      }, true);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.sugarj.common.exec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link ProcessSlots} backed by a GNU make jobserver, so that parallelism is
+ * shared with make and other jobserver-aware tools across the whole process
+ * tree.
+ * <p>
+ * The jobserver is a named pipe (fifo) holding one byte per job that may run
+ * in addition to the implicit job every participant owns. Launching a command
+ * takes the implicit job or reads a token from the fifo; the command's exit
+ * returns it. Commands are passed the jobserver in {@code MAKEFLAGS}, so a
+ * child make takes its jobs from the same pool. The fifo form of the
+ * protocol requires GNU make 4.4 or later; older makes reject it and fail.
+ * The file-descriptor form cannot be used from Java, since the JVM does not
+ * pass inherited descriptors on to its children.
+ */
+public class Jobserver implements ProcessSlots, Closeable {
+
+  private static final String AUTH_OPTION = "--jobserver-auth=";
+  private static final String FIFO_PREFIX = "fifo:";
+  private static final byte TOKEN = '+';
+
+  private final File fifo;
+  private final RandomAccessFile pipe;
+  private final int jobs;
+  private final boolean server;
+  private final AtomicBoolean implicitTokenFree = new AtomicBoolean(true);
+
+  private Jobserver(File fifo, int jobs, boolean server) throws IOException {
+    this.fifo = fifo;
+    this.jobs = jobs;
+    this.server = server;
+    // opening a fifo for reading and writing does not wait for a peer
+    this.pipe = new RandomAccessFile(fifo, "rw");
+  }
+
+  /**
+   * Creates a new jobserver that allows the given number of jobs.
+   *
+   * @throws IOException
+   *         if the fifo cannot be created, e.g. on Windows.
+   */
+  public static Jobserver create(int jobs) throws IOException {
+    if (jobs < 1)
+      throw new IllegalArgumentException("number of jobs must be positive: " + jobs);
+
+    File dir = Files.createTempDirectory("jobserver").toFile();
+    File fifo = new File(dir, "fifo");
+    mkfifo(fifo);
+
+    Jobserver jobserver = new Jobserver(fifo, jobs, true);
+    byte[] tokens = new byte[jobs - 1];
+    Arrays.fill(tokens, TOKEN);
+    jobserver.pipe.write(tokens);
+    return jobserver;
+  }
+
+  private static void mkfifo(File fifo) throws IOException {
+    // no Java API creates named pipes
+    Process p = new ProcessBuilder("mkfifo", "-m", "600", fifo.getAbsolutePath()).redirectErrorStream(true).start();
+    try {
+      if (p.waitFor() != 0)
+        throw new IOException("mkfifo failed for " + fifo);
+    } catch (InterruptedException e) {
+      p.destroy();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while creating " + fifo);
+    }
+  }
+
+  /**
+   * Joins the jobserver of the make that started this JVM, if any.
+   *
+   * @return the jobserver named in {@code MAKEFLAGS}, or null if there is no
+   *         jobserver in fifo form.
+   */
+  public static Jobserver fromEnvironment() throws IOException {
+    String makeflags = System.getenv("MAKEFLAGS");
+    if (makeflags == null)
+      return null;
+
+    String fifo = null;
+    int jobs = -1;
+    for (String word : makeflags.split("\\s+"))
+      if (word.startsWith(AUTH_OPTION))
+        fifo = word.startsWith(FIFO_PREFIX, AUTH_OPTION.length()) ? word.substring(AUTH_OPTION.length() + FIFO_PREFIX.length()) : null;
+      else if (word.startsWith("-j") && word.length() > 2)
+        try {
+          jobs = Integer.parseInt(word.substring(2));
+        } catch (NumberFormatException e) {
+        }
+
+    if (fifo == null)
+      return null;
+    return new Jobserver(new File(fifo), jobs, false);
+  }
+
+  /**
+   * @return the total number of jobs, or -1 if unknown to a client.
+   */
+  public int getJobs() {
+    return jobs;
+  }
+
+  public File getFifo() {
+    return fifo;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Reading a token from the fifo cannot be interrupted; the interrupt
+   * status is only checked before blocking.
+   */
+  @Override
+  public Slot acquire() throws InterruptedException {
+    if (implicitTokenFree.compareAndSet(true, false))
+      return new Slot() {
+        @Override
+        public void release() {
+          implicitTokenFree.set(true);
+        }
+      };
+
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    final int token;
+    try {
+      token = pipe.read();
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot read from jobserver " + fifo, e);
+    }
+    if (token < 0)
+      throw new IllegalStateException("jobserver " + fifo + " was closed");
+
+    return new Slot() {
+      @Override
+      public void release() {
+        try {
+          // return the token we got, as the protocol demands
+          pipe.write(token);
+        } catch (IOException e) {
+          throw new IllegalStateException("cannot write to jobserver " + fifo, e);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void configure(ProcessBuilder builder) {
+    if (!server)
+      // children inherit our MAKEFLAGS
+      return;
+    Map<String, String> env = builder.environment();
+    String makeflags = env.get("MAKEFLAGS");
+    String flags = "-j" + jobs + " " + AUTH_OPTION + FIFO_PREFIX + fifo.getAbsolutePath();
+    env.put("MAKEFLAGS", makeflags == null || makeflags.isEmpty() ? flags : makeflags + " " + flags);
+  }
+
+  /**
+   * Closes the fifo; a jobserver created by {@link #create(int)} also deletes
+   * it.
+   */
+  @Override
+  public void close() throws IOException {
+    pipe.close();
+    if (server) {
+      fifo.delete();
+      fifo.getParentFile().delete();
+    }
+  }
+}
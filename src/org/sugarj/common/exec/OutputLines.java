@@ -0,0 +1,280 @@
+package org.sugarj.common.exec;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of output lines of a command, stored as the raw bytes of all
+ * lines in one array plus an array of line offsets. Lines are decoded only
+ * when accessed, so capturing output costs little more than its size in bytes
+ * instead of a {@link String} object per line.
+ * <p>
+ * Lines are split at {@code \n}, {@code \r} and {@code \r\n} like
+ * {@link java.io.BufferedReader#readLine()} does, which requires an
+ * ASCII-compatible charset (the platform default on all supported systems).
+ * Lines given as strings are encoded as UTF-8, so that they are stored
+ * without loss.
+ */
+public final class OutputLines extends AbstractList<String> implements RandomAccess, Serializable {
+  private static final long serialVersionUID = 2573806046437569915L;
+
+  public static final OutputLines EMPTY = new OutputLines(new byte[0], new int[] {0}, Charset.defaultCharset());
+
+  private final byte[] data;
+
+  /**
+   * Line i spans bytes {@code offsets[i]} until {@code offsets[i + 1]}.
+   */
+  private final int[] offsets;
+
+  private transient Charset charset;
+
+  private OutputLines(byte[] data, int[] offsets, Charset charset) {
+    this.data = data;
+    this.offsets = offsets;
+    this.charset = charset;
+  }
+
+  public static OutputLines of(String... lines) {
+    return of(Arrays.asList(lines));
+  }
+
+  public static OutputLines of(List<String> lines) {
+    if (lines instanceof OutputLines)
+      return (OutputLines) lines;
+    Builder b = new Builder(StandardCharsets.UTF_8);
+    for (String line : lines)
+      b.addLine(line);
+    return b.build();
+  }
+
+  /**
+   * Splits the bytes into lines. A final line without terminator counts as a
+   * line, an empty final line does not.
+   */
+  public static OutputLines split(byte[] bytes, int off, int len, Charset charset) {
+    Builder b = new Builder(charset);
+    b.write(bytes, off, len);
+    return b.finish();
+  }
+
+  @Override
+  public String get(int index) {
+    if (index < 0 || index >= size())
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    return new String(data, offsets[index], offsets[index + 1] - offsets[index], charset);
+  }
+
+  @Override
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * @return the number of bytes of all lines, excluding line terminators.
+   */
+  public int byteSize() {
+    return data.length;
+  }
+
+  public Charset charset() {
+    return charset;
+  }
+
+  /**
+   * @return the lines as strings, all decoded at once.
+   */
+  public String[] toStringArray() {
+    String[] lines = new String[size()];
+    for (int i = 0; i < lines.length; i++)
+      lines[i] = get(i);
+    return lines;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof OutputLines) {
+      OutputLines other = (OutputLines) o;
+      if (charset.equals(other.charset))
+        return Arrays.equals(offsets, other.offsets) && Arrays.equals(data, other.data);
+    }
+    return super.equals(o);
+  }
+
+  @Override
+  public int hashCode() {
+    // must agree with List.hashCode for equality with other lists
+    return super.hashCode();
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeUTF(charset.name());
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    charset = Charset.forName(in.readUTF());
+  }
+
+  /**
+   * Collects lines, either as strings or from raw bytes written to it. Once
+   * built, the builder can be used further; built lists are not affected.
+   * Strings are encoded in the charset of the builder, so builders that
+   * collect strings need a Unicode charset. Builders are thread-safe.
+   */
+  public static class Builder {
+    private final Charset charset;
+    private byte[] data = new byte[256];
+    private int length;
+    private int[] offsets = new int[16];
+    private int lines;
+
+    /**
+     * Whether the last byte written was a {@code \r}, which makes a directly
+     * following {@code \n} part of the same line terminator.
+     */
+    private boolean pendingCR;
+
+    public Builder() {
+      this(Charset.defaultCharset());
+    }
+
+    public Builder(Charset charset) {
+      this.charset = charset;
+    }
+
+    public Charset charset() {
+      return charset;
+    }
+
+    public synchronized Builder addLine(String line) {
+      terminate();
+      byte[] bytes = line.getBytes(charset);
+      append(bytes, 0, bytes.length);
+      endLine();
+      return this;
+    }
+
+    public synchronized Builder addAll(List<String> lines) {
+      if (lines instanceof OutputLines && ((OutputLines) lines).charset.equals(charset)) {
+        terminate();
+        OutputLines other = (OutputLines) lines;
+        for (int i = 0; i < other.size(); i++) {
+          append(other.data, other.offsets[i], other.offsets[i + 1] - other.offsets[i]);
+          endLine();
+        }
+      }
+      else
+        for (String line : lines)
+          addLine(line);
+      return this;
+    }
+
+    /**
+     * Appends raw output bytes, splitting them at line terminators.
+     *
+     * @return the number of lines completed by these bytes.
+     */
+    public synchronized int write(byte[] bytes, int off, int len) {
+      int completed = 0;
+      int start = off;
+      int end = off + len;
+      for (int i = off; i < end; i++) {
+        byte c = bytes[i];
+        if (c == '\n' || c == '\r') {
+          if (c == '\n' && pendingCR && i == start) {
+            // second half of \r\n
+            start = i + 1;
+            pendingCR = false;
+            continue;
+          }
+          append(bytes, start, i - start);
+          endLine();
+          completed++;
+          pendingCR = c == '\r';
+          start = i + 1;
+        }
+        else
+          pendingCR = false;
+      }
+      append(bytes, start, end - start);
+      return completed;
+    }
+
+    /**
+     * @return the number of completed lines.
+     */
+    public synchronized int lineCount() {
+      return lines;
+    }
+
+    /**
+     * @return the completed line with the given index, decoded.
+     */
+    public synchronized String line(int index) {
+      if (index < 0 || index >= lines)
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + lines);
+      return new String(data, offsets[index], offsets[index + 1] - offsets[index], charset);
+    }
+
+    /**
+     * Terminates a trailing incomplete line written by {@link #write}.
+     */
+    public synchronized OutputLines finish() {
+      terminate();
+      return build();
+    }
+
+    /**
+     * @return the completed lines; a trailing incomplete line is excluded.
+     */
+    public synchronized OutputLines build() {
+      int start = lineStart();
+      int[] o = new int[lines + 1];
+      System.arraycopy(offsets, 1, o, 1, lines);
+      return new OutputLines(Arrays.copyOf(data, start), o, charset);
+    }
+
+    /**
+     * Drops all completed lines; a trailing incomplete line is kept.
+     */
+    public synchronized void clear() {
+      int start = lineStart();
+      System.arraycopy(data, start, data, 0, length - start);
+      length -= start;
+      lines = 0;
+    }
+
+    private int lineStart() {
+      return offsets[lines];
+    }
+
+    private void terminate() {
+      if (length > lineStart())
+        endLine();
+      pendingCR = false;
+    }
+
+    private void append(byte[] bytes, int off, int len) {
+      if (length + len > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+      System.arraycopy(bytes, off, data, length, len);
+      length += len;
+    }
+
+    private void endLine() {
+      if (lines + 2 > offsets.length)
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      offsets[++lines] = length;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.sugarj.common.exec;
+
+/**
+ * Limits how many external processes run at the same time. {@link
+ * org.sugarj.common.Exec} acquires a slot before it launches a command (one
+ * slot for a whole pipeline) and releases it once the command exited. See
+ * {@link org.sugarj.common.Exec#PROCESS_SLOTS}.
+ */
+public interface ProcessSlots {
+
+  /**
+   * A slot held by a running command.
+   */
+  public interface Slot {
+    /**
+     * Returns the slot. Must be called exactly once.
+     */
+    public void release();
+  }
+
+  /**
+   * Blocks until a process may be launched.
+   */
+  public Slot acquire() throws InterruptedException;
+
+  /**
+   * Prepares the process about to be launched, for example by passing on
+   * environment variables that let it share the slots.
+   */
+  public void configure(ProcessBuilder builder);
+}
@@ -0,0 +1,126 @@
+package org.sugarj.common.exec;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.Log;
+
+/**
+ * Deduplicates concurrent executions of the same command line in the same
+ * working directory with the same timeout and logging. While one execution is
+ * in flight, later callers wait for it and share its {@link ExecutionResult} or
+ * {@link ExecutionError} instead of starting the command again. The first
+ * caller runs the command in its own thread. Once the execution finished, the
+ * next call runs the command anew; results are not cached.
+ * <p>
+ * {@link Exec} uses {@link #flights} when {@link Exec#SINGLE_FLIGHT} is set.
+ */
+public class SingleFlight {
+
+  public static final SingleFlight flights = new SingleFlight();
+
+  private static class Key {
+    private final String dir;
+    private final String[] cmds;
+    private final long timeout;
+    private final boolean silent;
+    private final int hash;
+
+    private Key(File dir, String[] cmds, long timeout, boolean silent) {
+      this.dir = dir == null ? null : dir.getAbsolutePath();
+      this.cmds = cmds.clone();
+      this.timeout = timeout;
+      this.silent = silent;
+      int h = 31 * Arrays.hashCode(this.cmds) + (this.dir == null ? 0 : this.dir.hashCode());
+      h = 31 * h + (int) (timeout ^ (timeout >>> 32));
+      this.hash = 31 * h + (silent ? 1 : 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return hash == other.hash && timeout == other.timeout && silent == other.silent
+          && (dir == null ? other.dir == null : dir.equals(other.dir)) && Arrays.equals(cmds, other.cmds);
+    }
+  }
+
+  private final ConcurrentMap<Key, FutureTask<ExecutionResult>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong shared = new AtomicLong();
+
+  /**
+   * Runs the execution unless an identical one is in flight, in which case its
+   * outcome is shared.
+   *
+   * @param timeout
+   *        timeout of the execution in milliseconds, or 0.
+   * @param silent
+   *        whether the execution logs the output.
+   * @param execution
+   *        runs the command in the calling thread.
+   */
+  public ExecutionResult run(String prefix, File dir, String[] cmds, long timeout, boolean silent, Callable<ExecutionResult> execution) {
+    Key key = new Key(dir, cmds, timeout, silent);
+    FutureTask<ExecutionResult> task = new FutureTask<>(execution);
+    FutureTask<ExecutionResult> running = inFlight.putIfAbsent(key, task);
+
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      return get(task, prefix, cmds);
+    }
+
+    shared.incrementAndGet();
+    if (Exec.CACHE_INFO)
+      Log.log.log("Sharing result of concurrent execution of {}", prefix, Log.CACHING);
+    return get(running, prefix, cmds);
+  }
+
+  private static ExecutionResult get(FutureTask<ExecutionResult> task, String prefix, String[] cmds) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error)
+        throw (Error) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new ExecutionError("problems while executing " + prefix + ": " + cause.getMessage(), cmds, null, null, cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionError("interrupted while waiting for concurrent execution of " + prefix, cmds, null, null, e);
+    }
+  }
+
+  /**
+   * @return the number of executions that were shared instead of started.
+   */
+  public long getSharedCount() {
+    return shared.get();
+  }
+
+  /**
+   * @return the number of executions currently in flight.
+   */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+}
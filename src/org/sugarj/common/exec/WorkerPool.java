@@ -0,0 +1,547 @@
+package org.sugarj.common.exec;
+
+import static org.sugarj.common.Log.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.Log;
+import org.sugarj.common.util.ArrayUtils;
+import org.sugarj.common.util.ProcessUtils;
+
+/**
+ * A pool of long-lived worker processes of one tool. Instead of starting the
+ * tool for every invocation, requests are sent to a running worker as frames
+ * of the {@link WorkerProtocol} over its stdin, and responses are read from its
+ * stdout. This avoids paying the tool's startup cost for each request, which
+ * is substantial for JVM-based tools.
+ * <p>
+ * Each worker handles up to {@link #setMaxInFlight(int)} requests
+ * concurrently. Workers are recycled after a number of requests or when their
+ * resident set size exceeds a threshold, and are replaced when they die or stop
+ * answering health checks.
+ */
+public class WorkerPool {
+
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "exec-worker-pool");
+      t.setDaemon(true);
+      return t;
+    }
+  };
+
+  /**
+   * Kills workers that did not exit in time after being asked to shut down.
+   */
+  private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+
+  private class Request {
+    final String[] args;
+    final String[] cmds;
+    final ExecFuture future;
+    int id;
+    Worker worker;
+
+    Request(String[] args) {
+      this.args = args;
+      this.cmds = ArrayUtils.arrayConcat(WorkerPool.this.cmds, args);
+      this.future = new ExecFuture(prefix, cmds);
+    }
+  }
+
+  private class Worker {
+    /**
+     * Null until the worker is started by the first {@link #send}, which
+     * happens outside of the pool lock.
+     */
+    volatile Process p;
+    long pid;
+    DataOutputStream out;
+    IOException startFailure;
+    final Map<Integer, Request> pending = new HashMap<>();
+    int served;
+    boolean retiring;
+    boolean dead;
+    boolean shutdown;
+    boolean awaitingPong;
+
+    /**
+     * Starts the worker process unless it was started already. Must be called
+     * with the worker's lock held and without the pool lock held.
+     */
+    private void start() throws IOException {
+      if (startFailure != null)
+        throw startFailure;
+      if (p != null)
+        return;
+
+      ProcessBuilder builder = new ProcessBuilder(cmds);
+      builder.directory(dir);
+      Process process;
+      try {
+        process = builder.start();
+      } catch (IOException e) {
+        startFailure = e;
+        throw e;
+      }
+      pid = ProcessUtils.pid(process);
+      out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      p = process;
+
+      Thread reader = DAEMON_THREADS.newThread(new Runnable() {
+        @Override
+        public void run() {
+          readResponses();
+        }
+      });
+      reader.setName("exec-worker-" + prefix + "-" + pid);
+      reader.start();
+
+      Thread errReader = DAEMON_THREADS.newThread(new Runnable() {
+        @Override
+        public void run() {
+          forwardErrors();
+        }
+      });
+      errReader.setName("exec-worker-err-" + prefix + "-" + pid);
+      errReader.start();
+    }
+
+    private void readResponses() {
+      Throwable cause = null;
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(p.getInputStream()));
+        WorkerProtocol.Frame frame;
+        while ((frame = WorkerProtocol.readFrame(in)) != null) {
+          if (frame.type == WorkerProtocol.PONG) {
+            synchronized (WorkerPool.this) {
+              awaitingPong = false;
+            }
+          }
+          else if (frame.type == WorkerProtocol.RESPONSE)
+            responded(this, frame.id, WorkerProtocol.decodeResponse(frame.payload));
+        }
+      } catch (IOException e) {
+        cause = e;
+      }
+      died(this, cause);
+    }
+
+    private void forwardErrors() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+        String line;
+        while ((line = reader.readLine()) != null)
+          if (!silent)
+            log.logErr(line, Log.ALWAYS);
+      } catch (IOException e) {
+        // worker died, handled by the response reader
+      }
+    }
+
+    /**
+     * Sends a frame, starting the worker first if necessary. Must be called
+     * without the pool lock held.
+     */
+    synchronized void send(int id, byte type, byte[] payload) throws IOException {
+      start();
+      WorkerProtocol.writeFrame(out, id, type, payload);
+    }
+
+    /**
+     * Asks the worker to exit and kills it if it does not do so in time.
+     */
+    void shutdown() {
+      synchronized (WorkerPool.this) {
+        if (shutdown)
+          return;
+        shutdown = true;
+      }
+      synchronized (this) {
+        if (p == null) {
+          if (startFailure == null)
+            startFailure = new IOException("worker was shut down before it started");
+          return;
+        }
+        try {
+          send(0, WorkerProtocol.SHUTDOWN, null);
+          out.close();
+        } catch (IOException e) {
+          // worker is gone already
+        }
+      }
+      reaper.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (!ProcessUtils.hasExited(p))
+            ProcessUtils.destroyTree(p, true);
+        }
+      }, Exec.KILL_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public final String prefix;
+  public final File dir;
+  public final String[] cmds;
+
+  private final List<Worker> workers = new ArrayList<>();
+  private final LinkedList<Request> queue = new LinkedList<>();
+  private ScheduledExecutorService healthChecks;
+  private int nextId = 1;
+  private boolean closed;
+
+  private boolean silent = true;
+  private int maxWorkers = Runtime.getRuntime().availableProcessors();
+  private int maxInFlight = 1;
+  private int maxRequests = 0;
+  private long maxResidentSetSize = 0;
+  private long healthCheckInterval = 10000;
+
+  /**
+   * @param cmds
+   *        the command line that starts a worker process.
+   */
+  public WorkerPool(String... cmds) {
+    this(cmds[0], null, cmds);
+  }
+
+  public WorkerPool(String prefix, File dir, String... cmds) {
+    this.prefix = prefix;
+    this.dir = dir;
+    this.cmds = cmds;
+  }
+
+  public synchronized void setSilent(boolean silent) {
+    this.silent = silent;
+  }
+
+  public void setMaxWorkers(int maxWorkers) {
+    if (maxWorkers < 1)
+      throw new IllegalArgumentException("maximal number of workers must be positive: " + maxWorkers);
+    List<Request> assigned;
+    synchronized (this) {
+      this.maxWorkers = maxWorkers;
+      assigned = dispatch();
+    }
+    send(assigned);
+  }
+
+  /**
+   * @param maxInFlight
+   *        the number of requests a single worker handles concurrently.
+   */
+  public void setMaxInFlight(int maxInFlight) {
+    if (maxInFlight < 1)
+      throw new IllegalArgumentException("maximal number of requests in flight must be positive: " + maxInFlight);
+    List<Request> assigned;
+    synchronized (this) {
+      this.maxInFlight = maxInFlight;
+      assigned = dispatch();
+    }
+    send(assigned);
+  }
+
+  /**
+   * @param maxRequests
+   *        the number of requests after which a worker is replaced by a fresh
+   *        one, or 0 to never recycle workers because of their age.
+   */
+  public synchronized void setMaxRequests(int maxRequests) {
+    this.maxRequests = maxRequests;
+  }
+
+  /**
+   * @param bytes
+   *        the resident set size above which a worker is replaced by a fresh
+   *        one, or 0 for no limit. Only effective where
+   *        {@link ProcessUtils#residentSetSize(long)} is available.
+   */
+  public synchronized void setMaxResidentSetSize(long bytes) {
+    this.maxResidentSetSize = bytes;
+  }
+
+  /**
+   * @param millis
+   *        the interval in which workers are pinged. A worker that did not
+   *        answer the previous ping is killed and replaced.
+   */
+  public synchronized void setHealthCheckInterval(long millis) {
+    if (millis < 1)
+      throw new IllegalArgumentException("health check interval must be positive: " + millis);
+    this.healthCheckInterval = millis;
+  }
+
+  public synchronized int getWorkerCount() {
+    return workers.size();
+  }
+
+  /**
+   * Sends a request to a worker. If all workers are busy and no further
+   * worker may be started, the request is queued.
+   */
+  public ExecFuture submit(String... args) {
+    Request request = new Request(args);
+    List<Request> assigned;
+    synchronized (this) {
+      if (closed)
+        throw new IllegalStateException("worker pool " + prefix + " is closed");
+      queue.add(request);
+      assigned = dispatch();
+    }
+    send(assigned);
+    return request.future;
+  }
+
+  public ExecutionResult run(String... args) {
+    return submit(args).getResult();
+  }
+
+  /**
+   * Shuts down all workers. Pending requests fail.
+   */
+  public void close() {
+    List<Request> dropped;
+    List<Worker> toShutdown;
+    synchronized (this) {
+      closed = true;
+      dropped = new ArrayList<>(queue);
+      queue.clear();
+      toShutdown = new ArrayList<>(workers);
+      workers.clear();
+      for (Worker w : toShutdown) {
+        w.retiring = true;
+        dropped.addAll(w.pending.values());
+        w.pending.clear();
+      }
+    }
+
+    for (Request r : dropped)
+      r.future.fail(new ExecutionError("worker pool " + prefix + " was closed", r.cmds, null, null));
+    for (Worker w : toShutdown)
+      w.shutdown();
+
+    synchronized (this) {
+      if (healthChecks != null)
+        healthChecks.shutdown();
+      healthChecks = null;
+    }
+  }
+
+  private synchronized ScheduledExecutorService healthChecks() {
+    if (healthChecks == null) {
+      healthChecks = Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+      healthChecks.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          checkHealth();
+        }
+      }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+    return healthChecks;
+  }
+
+  /**
+   * Assigns queued requests to workers with free capacity, creating new
+   * workers as permitted. Must be called with the pool lock held. The
+   * returned requests must be passed to {@link #send(List)} after releasing
+   * the lock, which starts new workers and writes the requests.
+   */
+  private List<Request> dispatch() {
+    List<Request> assigned = new ArrayList<>();
+    while (!queue.isEmpty()) {
+      Request request = queue.peek();
+      if (request.future.isDone()) {
+        queue.poll();
+        continue;
+      }
+
+      Worker worker = null;
+      for (Worker w : workers)
+        if (!w.retiring && !w.dead && w.pending.size() < maxInFlight && (worker == null || w.pending.size() < worker.pending.size()))
+          worker = w;
+
+      if (worker == null && liveWorkers() < maxWorkers) {
+        worker = new Worker();
+        workers.add(worker);
+        healthChecks();
+      }
+
+      if (worker == null)
+        break;
+
+      queue.poll();
+      request.id = nextId++;
+      request.worker = worker;
+      worker.pending.put(request.id, request);
+      assigned.add(request);
+    }
+    return assigned;
+  }
+
+  /**
+   * Sends requests assigned by {@link #dispatch()} to their workers. Must be
+   * called without the pool lock held.
+   */
+  private void send(List<Request> assigned) {
+    for (Request request : assigned) {
+      Worker worker = request.worker;
+      try {
+        worker.send(request.id, WorkerProtocol.REQUEST, WorkerProtocol.encodeRequest(request.args));
+      } catch (IOException e) {
+        if (worker.p == null)
+          startFailed(worker, e);
+        else {
+          // the worker died; its reader fails or requeues pending requests
+          synchronized (this) {
+            worker.dead = true;
+          }
+          ProcessUtils.destroyTree(worker.p, true);
+        }
+      }
+    }
+  }
+
+  private int liveWorkers() {
+    int count = 0;
+    for (Worker w : workers)
+      if (!w.retiring && !w.dead)
+        count++;
+    return count;
+  }
+
+  private void responded(Worker worker, int id, WorkerProtocol.Response response) {
+    Request request;
+    boolean retire = false;
+    List<Request> assigned;
+    synchronized (this) {
+      request = worker.pending.remove(id);
+      worker.served++;
+
+      if (!worker.retiring && needsRecycling(worker))
+        worker.retiring = true;
+      if (worker.retiring && worker.pending.isEmpty()) {
+        workers.remove(worker);
+        retire = true;
+      }
+      assigned = dispatch();
+    }
+
+    if (retire)
+      worker.shutdown();
+    send(assigned);
+
+    if (request == null)
+      return;
+    if (response.exitValue != 0)
+      request.future.fail(new ExecutionError("Command failed", request.cmds, response.outMsgs, response.errMsgs));
+    else
+      request.future.complete(new ExecutionResult(request.cmds, response.outMsgs, response.errMsgs));
+  }
+
+  private boolean needsRecycling(Worker worker) {
+    if (maxRequests > 0 && worker.served >= maxRequests)
+      return true;
+    if (maxResidentSetSize > 0) {
+      long rss = ProcessUtils.residentSetSize(worker.pid);
+      if (rss > maxResidentSetSize)
+        return true;
+    }
+    return false;
+  }
+
+  private void died(Worker worker, Throwable cause) {
+    List<Request> failed;
+    List<Request> assigned;
+    synchronized (this) {
+      worker.dead = true;
+      workers.remove(worker);
+      failed = new ArrayList<>(worker.pending.values());
+      worker.pending.clear();
+      assigned = closed ? new ArrayList<Request>() : dispatch();
+    }
+
+    if (!ProcessUtils.hasExited(worker.p))
+      ProcessUtils.destroyTree(worker.p, true);
+
+    for (Request r : failed)
+      r.future.fail(new ExecutionError("worker " + prefix + " died while executing request", r.cmds, null, null, cause));
+    send(assigned);
+  }
+
+  private void startFailed(Worker worker, IOException e) {
+    List<Request> failed;
+    List<Request> assigned;
+    synchronized (this) {
+      worker.dead = true;
+      workers.remove(worker);
+      failed = new ArrayList<>(worker.pending.values());
+      worker.pending.clear();
+      assigned = closed ? new ArrayList<Request>() : dispatch();
+    }
+
+    for (Request r : failed)
+      r.future.fail(new ExecutionError("cannot start worker " + prefix + ": " + e.getMessage(), cmds, null, null, e));
+    send(assigned);
+  }
+
+  private void checkHealth() {
+    List<Worker> unresponsive = new ArrayList<>();
+    List<Worker> idleRetired = new ArrayList<>();
+    List<Worker> toPing = new ArrayList<>();
+    List<Request> assigned = new ArrayList<>();
+    synchronized (this) {
+      for (Worker w : workers) {
+        if (w.dead || w.p == null)
+          continue;
+        if (w.awaitingPong)
+          unresponsive.add(w);
+        else if (!w.retiring && w.pending.isEmpty() && needsRecycling(w)) {
+          w.retiring = true;
+          idleRetired.add(w);
+        }
+        else {
+          w.awaitingPong = true;
+          toPing.add(w);
+        }
+      }
+      workers.removeAll(idleRetired);
+      if (!idleRetired.isEmpty())
+        assigned = dispatch();
+    }
+
+    for (Worker w : unresponsive) {
+      if (!silent)
+        log.log("Worker {} (pid {}) did not answer health check, killing it", prefix, w.pid, Log.DETAIL);
+      ProcessUtils.destroyTree(w.p, true);
+    }
+    for (Worker w : idleRetired)
+      w.shutdown();
+    for (Worker w : toPing)
+      try {
+        w.send(0, WorkerProtocol.PING, null);
+      } catch (IOException e) {
+        ProcessUtils.destroyTree(w.p, true);
+      }
+    send(assigned);
+  }
+}
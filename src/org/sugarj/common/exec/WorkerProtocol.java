@@ -0,0 +1,249 @@
+package org.sugarj.common.exec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The framed message protocol spoken between a {@link WorkerPool} and its
+ * long-lived worker processes over the workers' stdin and stdout.
+ * <p>
+ * Every frame consists of a request id (int), a frame type (byte), the length
+ * of the payload (int) and the payload itself. Responses carry the id of their
+ * request, so a worker may process several requests concurrently and answer
+ * them in any order. Strings are encoded as their UTF-8 length (int) followed
+ * by their UTF-8 bytes.
+ * <p>
+ * Worker programs written in Java can use {@link #serveStdio(Handler, int)} to
+ * implement the worker side of the protocol.
+ */
+public class WorkerProtocol {
+
+  /** Payload: the arguments of the request as a string array. */
+  public static final byte REQUEST = 1;
+  /** Payload: exit value (int), output lines and error lines as string arrays. */
+  public static final byte RESPONSE = 2;
+  /** Health check, answered by a PONG with the same id. No payload. */
+  public static final byte PING = 3;
+  public static final byte PONG = 4;
+  /** Asks the worker to finish pending requests and exit. No payload. */
+  public static final byte SHUTDOWN = 5;
+
+  public static final int MAX_FRAME_LENGTH = 1 << 30;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  public static class Frame {
+    public final int id;
+    public final byte type;
+    public final byte[] payload;
+
+    public Frame(int id, byte type, byte[] payload) {
+      this.id = id;
+      this.type = type;
+      this.payload = payload;
+    }
+  }
+
+  public static class Response {
+    public final int exitValue;
+    public final String[] outMsgs;
+    public final String[] errMsgs;
+
+    public Response(int exitValue, String[] outMsgs, String[] errMsgs) {
+      this.exitValue = exitValue;
+      this.outMsgs = outMsgs;
+      this.errMsgs = errMsgs;
+    }
+  }
+
+  /**
+   * Handles a single request in a worker process.
+   */
+  public static interface Handler {
+    /**
+     * @return the exit value of the request; 0 indicates success.
+     */
+    public int handle(String[] args, List<String> outMsgs, List<String> errMsgs) throws Exception;
+  }
+
+  /**
+   * @return the next frame or null if the stream ended.
+   */
+  public static Frame readFrame(DataInputStream in) throws IOException {
+    int id;
+    try {
+      id = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte type = in.readByte();
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_LENGTH)
+      throw new IOException("Invalid frame length " + length);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return new Frame(id, type, payload);
+  }
+
+  public static void writeFrame(DataOutputStream out, int id, byte type, byte[] payload) throws IOException {
+    if (payload == null)
+      payload = EMPTY;
+    synchronized (out) {
+      out.writeInt(id);
+      out.writeByte(type);
+      out.writeInt(payload.length);
+      out.write(payload);
+      out.flush();
+    }
+  }
+
+  public static byte[] encodeRequest(String[] args) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeStrings(out, args);
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String[] decodeRequest(byte[] payload) throws IOException {
+    return readStrings(new DataInputStream(new ByteArrayInputStream(payload)));
+  }
+
+  public static byte[] encodeResponse(int exitValue, List<String> outMsgs, List<String> errMsgs) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(exitValue);
+      writeStrings(out, outMsgs.toArray(new String[outMsgs.size()]));
+      writeStrings(out, errMsgs.toArray(new String[errMsgs.size()]));
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static Response decodeResponse(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    int exitValue = in.readInt();
+    String[] outMsgs = readStrings(in);
+    String[] errMsgs = readStrings(in);
+    return new Response(exitValue, outMsgs, errMsgs);
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeInt(strings.length);
+    for (String s : strings) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0)
+      throw new IOException("Invalid string count " + count);
+    String[] strings = new String[count];
+    for (int i = 0; i < count; i++) {
+      int length = in.readInt();
+      if (length < 0)
+        throw new IOException("Invalid string length " + length);
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return strings;
+  }
+
+  /**
+   * Runs the worker side of the protocol on the standard streams of the
+   * current process. {@link System#out} is redirected to {@link System#err}
+   * because stdout carries the protocol.
+   *
+   * @param threads
+   *        the number of requests handled concurrently.
+   */
+  public static void serveStdio(Handler handler, int threads) throws IOException {
+    OutputStream protocolOut = new FileOutputStream(FileDescriptor.out);
+    System.setOut(System.err);
+    serve(new FileInputStream(FileDescriptor.in), protocolOut, handler, threads);
+  }
+
+  /**
+   * Reads requests from in and writes responses to out until the stream ends
+   * or a {@link #SHUTDOWN} frame arrives. Health checks are answered
+   * immediately, also while requests are being handled.
+   */
+  public static void serve(InputStream in, OutputStream out, final Handler handler, int threads) throws IOException {
+    DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+    final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      Frame frame;
+      while ((frame = readFrame(dataIn)) != null) {
+        if (frame.type == SHUTDOWN)
+          break;
+        else if (frame.type == PING)
+          writeFrame(dataOut, frame.id, PONG, null);
+        else if (frame.type == REQUEST) {
+          final int id = frame.id;
+          final String[] args = decodeRequest(frame.payload);
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              List<String> outMsgs = new ArrayList<>();
+              List<String> errMsgs = new ArrayList<>();
+              int exitValue;
+              try {
+                exitValue = handler.handle(args, outMsgs, errMsgs);
+              } catch (Throwable t) {
+                StringWriter trace = new StringWriter();
+                t.printStackTrace(new PrintWriter(trace));
+                errMsgs.add(trace.toString());
+                exitValue = 1;
+              }
+              try {
+                writeFrame(dataOut, id, RESPONSE, encodeResponse(exitValue, outMsgs, errMsgs));
+              } catch (IOException e) {
+                // the pool went away, nobody is waiting for the response
+              }
+            }
+          });
+        }
+      }
+    } finally {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      dataOut.flush();
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package org.sugarj.common.log;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.sugarj.common.Log;
+
+/**
+ * {@link LogWriter} that decouples logging threads from console or file I/O.
+ * Producers publish their text into a bounded lock-free ring buffer; a single
+ * consumer thread takes it out in batches, concatenates consecutive text for
+ * the same stream, and writes and flushes each stream once per batch.
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides whether
+ * producers wait for free space or drop their text. Dropped text is counted
+ * and reported on the error stream once space is available again.
+ */
+public class AsyncLogWriter implements LogWriter, Closeable {
+
+  public static enum OverflowPolicy {
+    /**
+     * Wait until the consumer made room.
+     */
+    BLOCK,
+    /**
+     * Discard the text.
+     */
+    DROP
+  }
+
+  /**
+   * Events the consumer takes out of the buffer at once.
+   */
+  private static final int BATCH_SIZE = 256;
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final class Cell {
+    PrintStream stream;
+    String text;
+  }
+
+  private final int mask;
+  private final Cell[] cells;
+
+  /**
+   * Sequence number per cell following Vyukov's bounded queue: a cell at
+   * position pos is free for the producer claiming pos if its sequence is
+   * pos, and readable for the consumer if it is pos + 1. Writing the
+   * sequence publishes the cell's content.
+   */
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  private final OverflowPolicy policy;
+  private final PrintStream target;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong droppedTotal = new AtomicLong();
+
+  private final Thread consumer;
+  private volatile boolean parked;
+  private volatile boolean closed;
+
+  /**
+   * Writes text to the streams the log chose.
+   *
+   * @param capacity
+   *        number of events the buffer holds, rounded up to a power of two.
+   */
+  public AsyncLogWriter(int capacity, OverflowPolicy policy) {
+    this(capacity, policy, null);
+  }
+
+  /**
+   * @param target
+   *        stream all text is written to regardless of the stream the log
+   *        chose, e.g., a log file; or null.
+   */
+  public AsyncLogWriter(int capacity, OverflowPolicy policy, PrintStream target) {
+    if (capacity < 2)
+      throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = size - 1;
+    this.cells = new Cell[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      cells[i] = new Cell();
+      sequences.set(i, i);
+    }
+    this.policy = policy;
+    this.target = target;
+
+    consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        consume();
+      }
+    }, "async-log-writer");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  @Override
+  public void write(PrintStream stream, String text) {
+    if (closed) {
+      writeClosed(stream, text);
+      return;
+    }
+
+    while (!offer(stream, text)) {
+      if (closed) {
+        // the consumer stopped and will not make room
+        writeClosed(stream, text);
+        return;
+      }
+      if (policy == OverflowPolicy.DROP) {
+        dropped.incrementAndGet();
+        droppedTotal.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(consumer);
+      LockSupport.parkNanos(this, 50000);
+    }
+    if (closed)
+      // the consumer may have stopped before the text was published
+      drainClosed();
+    else if (parked)
+      LockSupport.unpark(consumer);
+  }
+
+  private synchronized void writeClosed(PrintStream stream, String text) {
+    drainClosed();
+    print(target != null ? target : stream, text);
+  }
+
+  /**
+   * Writes the text left in the buffer once the consumer stopped.
+   */
+  private synchronized void drainClosed() {
+    boolean interrupted = false;
+    while (consumer.isAlive())
+      try {
+        consumer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    StringBuilder batch = new StringBuilder();
+    while (head != tail.get())
+      if (drain(batch) == 0)
+        // a producer claimed a cell but did not publish it yet
+        Thread.yield();
+    reportDropped();
+  }
+
+  private boolean offer(PrintStream stream, String text) {
+    long pos = tail.get();
+    while (true) {
+      int i = (int) (pos & mask);
+      long dif = sequences.get(i) - pos;
+      if (dif == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          Cell cell = cells[i];
+          cell.stream = stream;
+          cell.text = text;
+          sequences.set(i, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      }
+      else if (dif < 0)
+        // full
+        return false;
+      else
+        pos = tail.get();
+    }
+  }
+
+  private void consume() {
+    StringBuilder batch = new StringBuilder();
+    while (true) {
+      int taken = drain(batch);
+      reportDropped();
+
+      if (taken == 0) {
+        if (closed && head == tail.get())
+          return;
+        parked = true;
+        if (head == tail.get())
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        parked = false;
+      }
+    }
+  }
+
+  private void reportDropped() {
+    long lost = dropped.getAndSet(0);
+    if (lost > 0)
+      print(target != null ? target : Log.err, "[" + lost + " log messages dropped]" + System.lineSeparator());
+  }
+
+  /**
+   * Takes up to {@link #BATCH_SIZE} events out of the buffer and writes them.
+   */
+  private int drain(StringBuilder batch) {
+    PrintStream current = null;
+    int taken = 0;
+    long pos = head;
+    while (taken < BATCH_SIZE) {
+      int i = (int) (pos & mask);
+      if (sequences.get(i) != pos + 1)
+        break;
+      Cell cell = cells[i];
+      PrintStream stream = target != null ? target : cell.stream;
+      String text = cell.text;
+      cell.stream = null;
+      cell.text = null;
+      sequences.set(i, pos + mask + 1);
+      pos++;
+      taken++;
+
+      if (stream != current && current != null) {
+        print(current, batch);
+        batch.setLength(0);
+      }
+      current = stream;
+      batch.append(text);
+    }
+    if (current != null) {
+      print(current, batch);
+      batch.setLength(0);
+    }
+    head = pos;
+    return taken;
+  }
+
+  private static void print(PrintStream stream, CharSequence text) {
+    stream.append(text);
+    stream.flush();
+  }
+
+  @Override
+  public void flush() {
+    long until = tail.get();
+    LockSupport.unpark(consumer);
+    while (head < until && consumer.isAlive())
+      LockSupport.parkNanos(this, 100000);
+  }
+
+  /**
+   * Writes all pending text and stops the consumer. Text written afterwards
+   * is printed directly.
+   */
+  @Override
+  public void close() {
+    flush();
+    closed = true;
+    LockSupport.unpark(consumer);
+    drainClosed();
+  }
+
+  /**
+   * @return the number of events waiting to be written.
+   */
+  public long getPending() {
+    return tail.get() - head;
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full.
+   */
+  public long getDropped() {
+    return droppedTotal.get();
+  }
+}
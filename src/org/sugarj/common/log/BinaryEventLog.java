@@ -0,0 +1,335 @@
+package org.sugarj.common.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sugarj.common.Log;
+import org.sugarj.common.Log.Task;
+
+/**
+ * {@link EventSink} and {@link TaskListener} that writes compact binary
+ * records into memory-mapped files, so that high-volume levels can stay
+ * enabled without formatting and printing text. The templates of
+ * parameterized messages are interned and written once per file; records
+ * refer to them by id and store only the arguments, which are formatted when
+ * decoded by {@link BinaryEventLogDecoder}. Plain messages, task names and
+ * results are mostly one-off texts and are written inline.
+ * <p>
+ * Records go to files <code>prefix-N.bin</code> of a fixed size. When a file
+ * is full, the log continues with the next one and deletes files beyond the
+ * configured number, so the log keeps the most recent events. The unused
+ * rest of a file is zero.
+ * <p>
+ * File layout: a header (magic, version, file number, start time in
+ * milliseconds since the epoch) followed by records, each starting with a
+ * type byte:
+ * <ul>
+ * <li>{@link #TEMPLATE}: int id, string</li>
+ * <li>{@link #MESSAGE}: long nanos, int level, byte error, long task id,
+ * text, byte argument count, arguments</li>
+ * <li>{@link #BEGIN}: long nanos, int level, long task id, long parent id,
+ * text of the name</li>
+ * <li>{@link #END}: long nanos, long task id, text of the result</li>
+ * </ul>
+ * Timestamps are nanoseconds since the log was created. Strings are an int
+ * length and UTF-8 bytes; arguments are tagged null, long or string. A text
+ * is an int template id, or {@link #INLINE} followed by a string, or
+ * {@link #NONE}.
+ */
+public class BinaryEventLog implements EventSink, TaskListener, Closeable {
+
+  static final int MAGIC = 0x534c4f47; // SLOG
+  static final short VERSION = 2;
+  static final int HEADER_SIZE = 4 + 2 + 4 + 8;
+
+  static final byte END_OF_DATA = 0;
+  static final byte TEMPLATE = 1;
+  static final byte MESSAGE = 2;
+  static final byte BEGIN = 3;
+  static final byte END = 4;
+
+  static final byte ARG_NULL = 0;
+  static final byte ARG_LONG = 1;
+  static final byte ARG_STRING = 2;
+
+  static final int NONE = -1;
+  static final int INLINE = -2;
+
+  private static final int MESSAGE_SIZE = 1 + 8 + 4 + 1 + 8 + 4 + 1;
+  private static final int BEGIN_SIZE = 1 + 8 + 4 + 8 + 8 + 4;
+  private static final int END_SIZE = 1 + 8 + 8 + 4;
+
+  private final File dir;
+  private final String prefix;
+  private final int fileSize;
+  private final int maxFiles;
+  private final int maxStringBytes;
+
+  private final long originMillis = System.currentTimeMillis();
+  private final long originNanos = System.nanoTime();
+
+  private final ConcurrentMap<String, Integer> templateIds = new ConcurrentHashMap<>();
+  private final List<byte[]> templates = new ArrayList<>();
+
+  /**
+   * Templates defined in the current file.
+   */
+  private BitSet defined = new BitSet();
+  private MappedByteBuffer buffer;
+  private int fileNumber = -1;
+  private boolean closed;
+
+  private Log log;
+
+  /**
+   * @param fileSize
+   *        size of each file in bytes.
+   * @param maxFiles
+   *        number of files to keep.
+   */
+  public BinaryEventLog(File dir, String prefix, int fileSize, int maxFiles) throws IOException {
+    if (fileSize < 4096)
+      throw new IllegalArgumentException("file size must be at least 4096 bytes: " + fileSize);
+    if (maxFiles < 1)
+      throw new IllegalArgumentException("must keep at least one file: " + maxFiles);
+    this.dir = dir;
+    this.prefix = prefix;
+    this.fileSize = fileSize;
+    this.maxFiles = maxFiles;
+    // a message with its template or text and three maximal arguments must fit
+    this.maxStringBytes = (fileSize - HEADER_SIZE - MESSAGE_SIZE) / 8 - 16;
+    dir.mkdirs();
+    rotate();
+  }
+
+  /**
+   * Creates a log keeping four files of 16 MB, and makes it the event sink
+   * for the given levels and a task listener of the log.
+   */
+  public static BinaryEventLog start(Log log, int levels, File dir, String prefix) throws IOException {
+    BinaryEventLog events = new BinaryEventLog(dir, prefix, 16 << 20, 4);
+    events.log = log;
+    log.setEventSink(events, levels);
+    log.addTaskListener(events);
+    return events;
+  }
+
+  public File getFile(int number) {
+    return new File(dir, prefix + "-" + number + ".bin");
+  }
+
+  /**
+   * @return the number of the file currently written.
+   */
+  public synchronized int getFileNumber() {
+    return fileNumber;
+  }
+
+  private void rotate() throws IOException {
+    // the previous file is written back by the operating system
+    fileNumber++;
+    File file = getFile(fileNumber);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      raf.setLength(fileSize);
+      // the mapping stays valid after the channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    }
+    buffer.putInt(MAGIC).putShort(VERSION).putInt(fileNumber).putLong(originMillis);
+    defined = new BitSet();
+
+    File old = getFile(fileNumber - maxFiles);
+    if (old.exists())
+      old.delete();
+  }
+
+  @Override
+  public void message(int level, boolean error, Task task, String template, int args, Object arg1, Object arg2, Object arg3) {
+    long nanos = System.nanoTime() - originNanos;
+    int id = args > 0 ? template(template) : INLINE;
+    byte[] text = args > 0 ? null : string(template);
+    byte[] s1 = args > 0 && !isLong(arg1) ? string(arg1) : null;
+    byte[] s2 = args > 1 && !isLong(arg2) ? string(arg2) : null;
+    byte[] s3 = args > 2 && !isLong(arg3) ? string(arg3) : null;
+    int size = MESSAGE_SIZE + textSize(text) + argSize(args > 0, arg1, s1) + argSize(args > 1, arg2, s2) + argSize(args > 2, arg3, s3);
+
+    synchronized (this) {
+      if (!reserve(size, id))
+        return;
+      buffer.put(MESSAGE).putLong(nanos).putInt(level).put((byte) (error ? 1 : 0)).putLong(task == null ? 0 : task.id);
+      putText(id, text);
+      buffer.put((byte) args);
+      if (args > 0)
+        putArg(arg1, s1);
+      if (args > 1)
+        putArg(arg2, s2);
+      if (args > 2)
+        putArg(arg3, s3);
+    }
+  }
+
+  @Override
+  public void taskBegun(Task task) {
+    long nanos = task.startNanos - originNanos;
+    byte[] name = string(task.shortText == null ? "" : task.shortText);
+    synchronized (this) {
+      if (!reserve(BEGIN_SIZE + textSize(name), NONE))
+        return;
+      buffer.put(BEGIN).putLong(nanos).putInt(task.level).putLong(task.id).putLong(task.parent == null ? 0 : task.parent.id);
+      putText(INLINE, name);
+    }
+  }
+
+  @Override
+  public void taskEnded(Task task) {
+    long nanos = task.getEndNanos() - originNanos;
+    byte[] result = string(task.getResult());
+    synchronized (this) {
+      if (!reserve(END_SIZE + textSize(result), NONE))
+        return;
+      buffer.put(END).putLong(nanos).putLong(task.id);
+      putText(result == null ? NONE : INLINE, result);
+    }
+  }
+
+  /**
+   * Makes room for a record of the given size, defining its template in the
+   * current file first.
+   *
+   * @return false if the log is closed or unusable.
+   */
+  private boolean reserve(int size, int template) {
+    if (closed)
+      return false;
+    try {
+      // keep an end-of-data byte behind the record
+      if (buffer.remaining() < size + definitionSize(template) + 1)
+        rotate();
+    } catch (IOException e) {
+      closed = true;
+      Log.log.logErr("Cannot continue binary event log: " + e.getMessage(), Log.ALWAYS);
+      return false;
+    }
+    define(template);
+    return true;
+  }
+
+  private int definitionSize(int template) {
+    if (template < 0 || defined.get(template))
+      return 0;
+    return 1 + 4 + 4 + templateBytes(template).length;
+  }
+
+  private void define(int template) {
+    if (template < 0 || defined.get(template))
+      return;
+    byte[] bytes = templateBytes(template);
+    buffer.put(TEMPLATE).putInt(template).putInt(bytes.length).put(bytes);
+    defined.set(template);
+  }
+
+  private byte[] templateBytes(int template) {
+    synchronized (templates) {
+      return templates.get(template);
+    }
+  }
+
+  private int template(String template) {
+    Integer id = templateIds.get(template);
+    if (id != null)
+      return id;
+    synchronized (templates) {
+      id = templateIds.get(template);
+      if (id == null) {
+        id = templates.size();
+        templates.add(truncate(template.getBytes(StandardCharsets.UTF_8)));
+        templateIds.put(template, id);
+      }
+      return id;
+    }
+  }
+
+  private static boolean isLong(Object arg) {
+    return arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte;
+  }
+
+  private byte[] string(Object arg) {
+    return arg == null ? null : truncate(arg.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private byte[] truncate(byte[] bytes) {
+    if (bytes.length <= maxStringBytes)
+      return bytes;
+    int len = maxStringBytes;
+    // do not cut a multi-byte character
+    while (len > 0 && (bytes[len] & 0xc0) == 0x80)
+      len--;
+    byte[] truncated = new byte[len];
+    System.arraycopy(bytes, 0, truncated, 0, len);
+    return truncated;
+  }
+
+  private static int textSize(byte[] inline) {
+    return inline == null ? 0 : 4 + inline.length;
+  }
+
+  private void putText(int template, byte[] inline) {
+    buffer.putInt(template);
+    if (template == INLINE)
+      buffer.putInt(inline.length).put(inline);
+  }
+
+  private static int argSize(boolean present, Object arg, byte[] string) {
+    if (!present)
+      return 0;
+    if (string != null)
+      return 1 + 4 + string.length;
+    return arg == null ? 1 : 1 + 8;
+  }
+
+  private void putArg(Object arg, byte[] string) {
+    if (string != null)
+      buffer.put(ARG_STRING).putInt(string.length).put(string);
+    else if (arg == null)
+      buffer.put(ARG_NULL);
+    else
+      buffer.put(ARG_LONG).putLong(((Number) arg).longValue());
+  }
+
+  /**
+   * Writes the mapped files to disk.
+   */
+  public synchronized void force() {
+    if (!closed)
+      buffer.force();
+  }
+
+  /**
+   * Stops recording; if started for a log, it formats all messages as text
+   * again.
+   */
+  @Override
+  public void close() {
+    if (log != null) {
+      log.removeTaskListener(this);
+      if (log.getEventSink() == this)
+        log.setEventSink(null, 0);
+    }
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      buffer.force();
+    }
+  }
+}
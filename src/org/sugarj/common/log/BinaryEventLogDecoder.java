@@ -0,0 +1,235 @@
+package org.sugarj.common.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds the text output of {@link org.sugarj.common.Log} from the files
+ * of a {@link BinaryEventLog}. Usage:
+ *
+ * <pre>
+ * java org.sugarj.common.log.BinaryEventLogDecoder [-t] file...
+ * </pre>
+ *
+ * The files are decoded in the order of their file numbers; a directory
+ * stands for all <code>.bin</code> files in it. With <code>-t</code>, each
+ * line starts with the time since the log was created.
+ */
+public class BinaryEventLogDecoder {
+
+  private static class TaskInfo {
+    final String name;
+    final int depth;
+    final long startNanos;
+
+    TaskInfo(String name, int depth, long startNanos) {
+      this.name = name;
+      this.depth = depth;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private final PrintStream out;
+  private final PrintStream err;
+  private final boolean timestamps;
+  private final Map<Long, TaskInfo> tasks = new HashMap<>();
+  private String origin;
+
+  public BinaryEventLogDecoder(PrintStream out, PrintStream err, boolean timestamps) {
+    this.out = out;
+    this.err = err;
+    this.timestamps = timestamps;
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean timestamps = false;
+    List<File> files = new ArrayList<>();
+    for (String arg : args)
+      if (arg.equals("-t"))
+        timestamps = true;
+      else {
+        File f = new File(arg);
+        File[] children = f.listFiles();
+        if (children == null)
+          files.add(f);
+        else
+          for (File child : children)
+            if (child.getName().endsWith(".bin"))
+              files.add(child);
+      }
+
+    if (files.isEmpty()) {
+      System.err.println("usage: BinaryEventLogDecoder [-t] file...");
+      System.exit(1);
+    }
+
+    BinaryEventLogDecoder decoder = new BinaryEventLogDecoder(System.out, System.err, timestamps);
+    decoder.decode(files);
+    System.out.flush();
+  }
+
+  /**
+   * Decodes the files in the order of their file numbers.
+   */
+  public void decode(List<File> files) throws IOException {
+    final Map<File, ByteBuffer> buffers = new HashMap<>();
+    for (File file : files)
+      buffers.put(file, read(file));
+
+    List<File> sorted = new ArrayList<>(files);
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Integer.compare(buffers.get(f1).getInt(6), buffers.get(f2).getInt(6));
+      }
+    });
+
+    for (File file : sorted)
+      decode(buffers.get(file));
+  }
+
+  private static ByteBuffer read(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.remaining() < BinaryEventLog.HEADER_SIZE || buffer.getInt(0) != BinaryEventLog.MAGIC)
+        throw new IOException("not a binary event log: " + file);
+      if (buffer.getShort(4) != BinaryEventLog.VERSION)
+        throw new IOException("unsupported version " + buffer.getShort(4) + " of binary event log: " + file);
+      return buffer;
+    }
+  }
+
+  /**
+   * Decodes one file. Tasks begun in earlier files are known if those files
+   * were decoded before.
+   */
+  public void decode(ByteBuffer buffer) {
+    buffer.position(4 + 2 + 4);
+    long originMillis = buffer.getLong();
+    if (timestamps && origin == null) {
+      origin = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(originMillis));
+      out.println("log started " + origin);
+    }
+
+    Map<Integer, String> templates = new HashMap<>();
+    while (buffer.hasRemaining()) {
+      byte type = buffer.get();
+      switch (type) {
+      case BinaryEventLog.END_OF_DATA:
+        return;
+
+      case BinaryEventLog.TEMPLATE: {
+        int id = buffer.getInt();
+        templates.put(id, string(buffer));
+        break;
+      }
+
+      case BinaryEventLog.MESSAGE: {
+        long nanos = buffer.getLong();
+        buffer.getInt(); // level
+        boolean error = buffer.get() != 0;
+        TaskInfo task = tasks.get(buffer.getLong());
+        String template = text(buffer, templates);
+        int argc = buffer.get();
+        Object[] args = new Object[argc];
+        for (int i = 0; i < argc; i++)
+          args[i] = arg(buffer);
+        print(error ? err : out, nanos, task == null ? 0 : task.depth + 1, format(template, args));
+        break;
+      }
+
+      case BinaryEventLog.BEGIN: {
+        long nanos = buffer.getLong();
+        buffer.getInt(); // level
+        long id = buffer.getLong();
+        TaskInfo parent = tasks.get(buffer.getLong());
+        String name = text(buffer, templates);
+        TaskInfo task = new TaskInfo(name, parent == null ? 0 : parent.depth + 1, nanos);
+        tasks.put(id, task);
+        print(out, nanos, task.depth, name);
+        break;
+      }
+
+      case BinaryEventLog.END: {
+        long nanos = buffer.getLong();
+        TaskInfo task = tasks.remove(buffer.getLong());
+        String result = text(buffer, templates);
+        if (task != null)
+          print(out, nanos, task.depth, task.name + " ... " + (result == null ? "done" : result) + " - " + (nanos - task.startNanos) / 1000000 + "ms");
+        break;
+      }
+
+      default:
+        throw new IllegalStateException("corrupt binary event log: record type " + type + " at " + (buffer.position() - 1));
+      }
+    }
+  }
+
+  private void print(PrintStream stream, long nanos, int depth, String text) {
+    StringBuilder b = new StringBuilder();
+    if (timestamps)
+      b.append(String.format("[%12.3fms] ", nanos / 1e6));
+    for (int i = 0; i < depth; i++)
+      b.append("  ");
+    stream.println(b.append(text));
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String text(ByteBuffer buffer, Map<Integer, String> templates) {
+    int id = buffer.getInt();
+    if (id == BinaryEventLog.INLINE)
+      return string(buffer);
+    if (id == BinaryEventLog.NONE)
+      return null;
+    return templates.get(id);
+  }
+
+  private static Object arg(ByteBuffer buffer) {
+    byte tag = buffer.get();
+    switch (tag) {
+    case BinaryEventLog.ARG_NULL:
+      return null;
+    case BinaryEventLog.ARG_LONG:
+      return buffer.getLong();
+    case BinaryEventLog.ARG_STRING:
+      return string(buffer);
+    default:
+      throw new IllegalStateException("corrupt binary event log: argument tag " + tag + " at " + (buffer.position() - 1));
+    }
+  }
+
+  /**
+   * Replaces each <code>{}</code> by the next argument, like
+   * {@link org.sugarj.common.Log#log(String, Object, int)}.
+   */
+  private static String format(String template, Object[] args) {
+    StringBuilder b = new StringBuilder();
+    int start = 0;
+    for (Object arg : args) {
+      int hole = template.indexOf("{}", start);
+      if (hole < 0)
+        break;
+      b.append(template, start, hole).append(arg);
+      start = hole + 2;
+    }
+    return b.append(template, start, template.length()).toString();
+  }
+}
@@ -0,0 +1,21 @@
+package org.sugarj.common.log;
+
+import org.sugarj.common.Log.Task;
+
+/**
+ * Receives log messages as structured events instead of formatted text. See
+ * {@link org.sugarj.common.Log#setEventSink(EventSink, int)}.
+ */
+public interface EventSink {
+
+  /**
+   * Records a message. The template contains a <code>{}</code> for each of
+   * the first <code>args</code> arguments; unused arguments are null.
+   * 
+   * @param error
+   *        whether the message was logged to the error stream.
+   * @param task
+   *        the current task of the logging thread, or null.
+   */
+  public void message(int level, boolean error, Task task, String template, int args, Object arg1, Object arg2, Object arg3);
+}
@@ -0,0 +1,21 @@
+package org.sugarj.common.log;
+
+import java.io.PrintStream;
+
+/**
+ * Writes the text {@link org.sugarj.common.Log} has formatted. Without a
+ * writer, the log prints directly to its streams.
+ */
+public interface LogWriter {
+
+  /**
+   * Writes the text, which includes line separators where needed, to the
+   * stream.
+   */
+  public void write(PrintStream stream, String text);
+
+  /**
+   * Blocks until all text written so far has reached its stream.
+   */
+  public void flush();
+}
@@ -0,0 +1,192 @@
+package org.sugarj.common.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sugarj.common.Log;
+
+/**
+ * Buffers the output that belongs to one task, so that it can be published
+ * as one block instead of interleaving with the output of concurrent tasks.
+ * Output beyond the spill threshold is moved to a temporary file.
+ * <p>
+ * See {@link Log#beginGroupedTask}.
+ */
+public class OutputGroup {
+
+  /**
+   * Characters kept in memory before spilling to a file.
+   */
+  public static final int DEFAULT_SPILL_THRESHOLD = 1 << 20;
+
+  private static final class Chunk {
+    final boolean error;
+    final StringBuilder text = new StringBuilder();
+
+    Chunk(boolean error) {
+      this.error = error;
+    }
+  }
+
+  private final int spillThreshold;
+  private final List<Chunk> chunks = new ArrayList<>();
+  private long length;
+  private File spillFile;
+  private DataOutputStream spill;
+  /**
+   * Set when the spill file could not be created or written. Later output
+   * then stays in memory instead of retrying the file for every append.
+   */
+  private boolean spillFailed;
+  private boolean published;
+
+  public OutputGroup() {
+    this(DEFAULT_SPILL_THRESHOLD);
+  }
+
+  public OutputGroup(int spillThreshold) {
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * Buffers the text for the standard or error stream.
+   *
+   * @return false if the group was published already.
+   */
+  public synchronized boolean append(boolean error, String text) {
+    if (published)
+      return false;
+    length += text.length();
+
+    if (spill == null && !spillFailed && length > spillThreshold)
+      spill();
+    if (spill != null && !spillFailed && writeSpilled(error, text))
+      return true;
+
+    Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (last == null || last.error != error) {
+      last = new Chunk(error);
+      chunks.add(last);
+    }
+    last.text.append(text);
+    return true;
+  }
+
+  /**
+   * Moves the buffered chunks to a temporary file. If no file can be
+   * created, the output stays in memory and spilling is not attempted again.
+   */
+  private void spill() {
+    try {
+      spillFile = File.createTempFile("output-group", ".tmp");
+      spillFile.deleteOnExit();
+      spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+      for (Chunk chunk : chunks)
+        write(spill, chunk.error, chunk.text.toString());
+      chunks.clear();
+    } catch (IOException e) {
+      abandonSpill();
+      spillFailed = true;
+    }
+  }
+
+  /**
+   * @return false if the text could not be written. The file is then kept for
+   *         the output spilled so far, and later output stays in memory.
+   */
+  private boolean writeSpilled(boolean error, String text) {
+    try {
+      write(spill, error, text);
+      return true;
+    } catch (IOException e) {
+      spillFailed = true;
+      return false;
+    }
+  }
+
+  private static void write(DataOutputStream out, boolean error, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeBoolean(error);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void abandonSpill() {
+    if (spill != null)
+      try {
+        spill.close();
+      } catch (IOException e) {
+      }
+    if (spillFile != null)
+      spillFile.delete();
+    spill = null;
+    spillFile = null;
+  }
+
+  /**
+   * @return the number of characters buffered.
+   */
+  public synchronized long length() {
+    return length;
+  }
+
+  public synchronized boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  public synchronized boolean isPublished() {
+    return published;
+  }
+
+  /**
+   * Writes the buffered output in order to the writer, which receives
+   * {@link Log#out} or {@link Log#err} as stream. Afterwards, the group
+   * accepts no more output.
+   */
+  public synchronized void publish(LogWriter writer) {
+    if (published)
+      return;
+    published = true;
+
+    if (spill != null) {
+      try {
+        spill.close();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+          while (true) {
+            boolean error;
+            try {
+              error = in.readBoolean();
+            } catch (EOFException e) {
+              break;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            writer.write(stream(error), new String(bytes, StandardCharsets.UTF_8));
+          }
+        }
+      } catch (IOException e) {
+        writer.write(Log.err, "[output lost: " + e.getMessage() + "]" + System.lineSeparator());
+      }
+      abandonSpill();
+    }
+
+    for (Chunk chunk : chunks)
+      writer.write(stream(chunk.error), chunk.text.toString());
+    chunks.clear();
+  }
+
+  private static PrintStream stream(boolean error) {
+    return error ? Log.err : Log.out;
+  }
+}
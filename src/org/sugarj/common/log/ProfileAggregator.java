@@ -0,0 +1,271 @@
+package org.sugarj.common.log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sugarj.common.Log;
+import org.sugarj.common.Log.Task;
+
+/**
+ * Folds the task tree of a {@link Log} into statistics per task name: count,
+ * total and self time, and the median, 95th percentile and maximum duration.
+ * Self time is the duration of a task minus the durations of its subtasks.
+ * <p>
+ * At the end of a build, {@link #report(int)} lists the slowest task names,
+ * and {@link #writeCollapsedStacks(File)} writes the self time of each task
+ * path in the collapsed-stack format that flame-graph tools (flamegraph.pl,
+ * speedscope, Perfetto) read.
+ */
+public class ProfileAggregator implements TaskListener {
+
+  /**
+   * Statistics of all tasks with the same name. Durations in nanoseconds.
+   */
+  public static class Stats {
+    public final String name;
+    private int count;
+    private long total;
+    private long self;
+    private long max;
+    private long[] durations = new long[8];
+    private boolean sorted = true;
+
+    private Stats(String name) {
+      this.name = name;
+    }
+
+    private synchronized void add(long duration, long selfTime) {
+      if (count == durations.length)
+        durations = Arrays.copyOf(durations, count * 2);
+      if (count > 0 && duration < durations[count - 1])
+        sorted = false;
+      durations[count++] = duration;
+      total += duration;
+      self += selfTime;
+      max = Math.max(max, duration);
+    }
+
+    public synchronized int getCount() {
+      return count;
+    }
+
+    public synchronized long getTotalNanos() {
+      return total;
+    }
+
+    public synchronized long getSelfNanos() {
+      return self;
+    }
+
+    public synchronized long getMaxNanos() {
+      return max;
+    }
+
+    /**
+     * @param p
+     *        percentile between 0 and 100.
+     * @return the duration not exceeded by p percent of the tasks
+     *         (nearest-rank), or 0 if there are none.
+     */
+    public synchronized long getPercentileNanos(double p) {
+      if (count == 0)
+        return 0;
+      if (!sorted) {
+        Arrays.sort(durations, 0, count);
+        sorted = true;
+      }
+      int rank = (int) Math.ceil(p / 100 * count);
+      return durations[Math.max(0, Math.min(count, rank) - 1)];
+    }
+  }
+
+  /**
+   * Name under which tasks without a short text are aggregated.
+   */
+  public static final String UNNAMED = "(unnamed)";
+
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> stacks = new ConcurrentHashMap<>();
+
+  /**
+   * Summed durations of the ended subtasks of running tasks.
+   */
+  private final ConcurrentMap<Task, AtomicLong> childTime = new ConcurrentHashMap<>();
+
+  private Log log;
+
+  /**
+   * Creates an aggregator and registers it with the log.
+   */
+  public static ProfileAggregator start(Log log) {
+    ProfileAggregator aggregator = new ProfileAggregator();
+    aggregator.log = log;
+    log.addTaskListener(aggregator);
+    return aggregator;
+  }
+
+  /**
+   * Stops aggregating tasks of the log the aggregator was started for.
+   */
+  public void stop() {
+    if (log != null)
+      log.removeTaskListener(this);
+  }
+
+  @Override
+  public void taskBegun(Task task) {
+  }
+
+  @Override
+  public void taskEnded(Task task) {
+    long duration = task.getDurationNanos();
+    AtomicLong children = childTime.remove(task);
+    // subtasks in other threads may overlap
+    long self = Math.max(0, duration - (children == null ? 0 : children.get()));
+
+    if (task.parent != null && !task.parent.isEnded()) {
+      AtomicLong parentChildren = childTime.get(task.parent);
+      if (parentChildren == null) {
+        AtomicLong fresh = new AtomicLong();
+        parentChildren = childTime.putIfAbsent(task.parent, fresh);
+        if (parentChildren == null)
+          parentChildren = fresh;
+      }
+      parentChildren.addAndGet(duration);
+    }
+
+    stats(name(task)).add(duration, self);
+    counter(stacks, stack(task)).addAndGet(self);
+  }
+
+  private Stats stats(String name) {
+    Stats s = stats.get(name);
+    if (s == null) {
+      Stats fresh = new Stats(name);
+      s = stats.putIfAbsent(name, fresh);
+      if (s == null)
+        s = fresh;
+    }
+    return s;
+  }
+
+  private static AtomicLong counter(ConcurrentMap<String, AtomicLong> map, String key) {
+    AtomicLong c = map.get(key);
+    if (c == null) {
+      AtomicLong fresh = new AtomicLong();
+      c = map.putIfAbsent(key, fresh);
+      if (c == null)
+        c = fresh;
+    }
+    return c;
+  }
+
+  private static String name(Task task) {
+    return task.shortText == null ? UNNAMED : task.shortText;
+  }
+
+  /**
+   * @return the names of the task and its ancestors from the root, separated
+   *         by semicolons.
+   */
+  private static String stack(Task task) {
+    int frames = 0;
+    for (Task t = task; t != null; t = t.parent)
+      frames++;
+    String[] names = new String[frames];
+    int i = frames;
+    for (Task t = task; t != null; t = t.parent)
+      names[--i] = name(t);
+    StringBuilder b = new StringBuilder();
+    for (; i < names.length; i++) {
+      if (b.length() > 0)
+        b.append(';');
+      // semicolons separate frames and the last space separates the value
+      b.append(names[i].replace(';', ',').replace('\n', ' '));
+    }
+    return b.toString();
+  }
+
+  /**
+   * @return the statistics of the task name, or null if no such task ended.
+   */
+  public Stats getStats(String name) {
+    return stats.get(name);
+  }
+
+  /**
+   * @return the statistics of all task names, slowest total first.
+   */
+  public List<Stats> getStats() {
+    List<Stats> list = new ArrayList<>(stats.values());
+    Collections.sort(list, new Comparator<Stats>() {
+      @Override
+      public int compare(Stats s1, Stats s2) {
+        return Long.compare(s2.getTotalNanos(), s1.getTotalNanos());
+      }
+    });
+    return list;
+  }
+
+  public void clear() {
+    stats.clear();
+    stacks.clear();
+    childTime.clear();
+  }
+
+  /**
+   * @return a table of the task names with the highest total time.
+   */
+  public String report(int topN) {
+    List<Stats> list = getStats();
+    StringBuilder b = new StringBuilder();
+    b.append(String.format("%-40s %8s %10s %10s %9s %9s %9s%n", "task", "count", "total ms", "self ms", "p50 ms", "p95 ms", "max ms"));
+    for (Stats s : list.subList(0, Math.min(topN, list.size()))) {
+      String name = s.name.length() > 40 ? s.name.substring(0, 37) + "..." : s.name;
+      b.append(String.format("%-40s %8d %10d %10d %9d %9d %9d%n", name, s.getCount(), ms(s.getTotalNanos()), ms(s.getSelfNanos()), ms(s.getPercentileNanos(50)), ms(s.getPercentileNanos(95)), ms(s.getMaxNanos())));
+    }
+    return b.toString();
+  }
+
+  /**
+   * Logs the {@link #report(int) report} through the log.
+   */
+  public void logReport(Log log, int topN) {
+    log.beginTask("Slowest tasks", Log.CORE);
+    for (String line : report(topN).split("\\r?\\n"))
+      log.log(line, Log.CORE);
+    log.endTask();
+  }
+
+  private static long ms(long nanos) {
+    return nanos / 1000000;
+  }
+
+  /**
+   * Writes one line per task path with its self time in microseconds.
+   */
+  public void writeCollapsedStacks(Writer out) throws IOException {
+    for (Map.Entry<String, AtomicLong> e : stacks.entrySet())
+      out.write(e.getKey() + " " + e.getValue().get() / 1000 + "\n");
+  }
+
+  public void writeCollapsedStacks(File file) throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      writeCollapsedStacks(out);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package org.sugarj.common.log;
+
+import org.sugarj.common.Log.Task;
+
+/**
+ * Is notified when {@link org.sugarj.common.Log} tasks begin and end. Called
+ * synchronously by the thread that begins or ends the task, so listeners must
+ * be fast and thread-safe.
+ */
+public interface TaskListener {
+
+  public void taskBegun(Task task);
+
+  public void taskEnded(Task task);
+}
@@ -0,0 +1,169 @@
+package org.sugarj.common.log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.sugarj.common.Log;
+import org.sugarj.common.Log.Task;
+import org.sugarj.common.StringCommands;
+
+/**
+ * Records the tasks of a {@link Log}, including executions, and writes them
+ * in the Chrome Trace Event format, which chrome://tracing and the Perfetto UI
+ * display as a timeline per thread:
+ * 
+ * <pre>
+ * TraceRecorder trace = TraceRecorder.start(Log.log);
+ * ...
+ * trace.stop();
+ * trace.writeJson(new File("build-trace.json"));
+ * </pre>
+ * 
+ * Each ended task becomes a complete event on the thread that began it, with
+ * its level, result and command line as arguments. Timestamps are relative to
+ * the creation of the recorder.
+ */
+public class TraceRecorder implements TaskListener {
+
+  private final long originNanos = System.nanoTime();
+  private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+  private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+  private Log log;
+
+  /**
+   * Creates a recorder and registers it with the log.
+   */
+  public static TraceRecorder start(Log log) {
+    TraceRecorder recorder = new TraceRecorder();
+    recorder.log = log;
+    log.addTaskListener(recorder);
+    return recorder;
+  }
+
+  /**
+   * Stops recording tasks of the log the recorder was started for.
+   */
+  public void stop() {
+    if (log != null)
+      log.removeTaskListener(this);
+  }
+
+  @Override
+  public void taskBegun(Task task) {
+    if (!threadNames.containsKey(task.threadId))
+      threadNames.put(task.threadId, Thread.currentThread().getName());
+  }
+
+  @Override
+  public void taskEnded(Task task) {
+    if (task.startNanos >= originNanos)
+      tasks.add(task);
+  }
+
+  /**
+   * @return the number of tasks recorded.
+   */
+  public int size() {
+    return tasks.size();
+  }
+
+  public void clear() {
+    tasks.clear();
+  }
+
+  public void writeJson(File file) throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      writeJson(out);
+    }
+  }
+
+  public String toJson() {
+    StringWriter out = new StringWriter();
+    try {
+      writeJson(out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out.toString();
+  }
+
+  public void writeJson(Writer out) throws IOException {
+    String pid = pid();
+    out.write("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [\n");
+    boolean first = true;
+    for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+      if (!first)
+        out.write(",\n");
+      first = false;
+      StringBuilder b = new StringBuilder();
+      b.append("{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": ").append(pid).append(", \"tid\": ").append(thread.getKey()).append(", \"args\": {\"name\": ");
+      StringCommands.appendJsonString(b, thread.getValue());
+      out.append(b).append("}}");
+    }
+
+    StringBuilder b = new StringBuilder();
+    for (Task task : tasks) {
+      b.setLength(0);
+      if (!first)
+        b.append(",\n");
+      first = false;
+      b.append("{\"name\": ");
+      StringCommands.appendJsonString(b, task.shortText == null ? ProfileAggregator.UNNAMED : task.shortText);
+      b.append(", \"cat\": \"").append(task.getCommandLine() == null ? "task" : "execution").append('"');
+      b.append(", \"ph\": \"X\", \"pid\": ").append(pid).append(", \"tid\": ").append(task.threadId);
+      b.append(", \"ts\": ");
+      micros(b, task.startNanos - originNanos);
+      b.append(", \"dur\": ");
+      micros(b, task.getEndNanos() - task.startNanos);
+      b.append(", \"args\": {\"level\": ").append(task.level);
+      if (task.getResult() != null) {
+        b.append(", \"result\": ");
+        StringCommands.appendJsonString(b, task.getResult());
+      }
+      if (task.getCommandLine() != null) {
+        b.append(", \"cmds\": ");
+        StringCommands.appendJsonString(b, (log == null ? Log.log : log).commandLineAsString(task.getCommandLine()).trim());
+      }
+      b.append("}}");
+      out.append(b);
+    }
+    out.write("\n]}\n");
+  }
+
+  /**
+   * Appends nanoseconds as microseconds with three decimals, the unit of the
+   * trace format.
+   */
+  private static void micros(StringBuilder b, long nanos) {
+    b.append(nanos / 1000).append('.');
+    long frac = nanos % 1000;
+    if (frac < 100)
+      b.append('0');
+    if (frac < 10)
+      b.append('0');
+    b.append(frac);
+  }
+
+  private static String pid() {
+    // "pid@host" on all common JVMs
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    int at = name.indexOf('@');
+    if (at > 0)
+      try {
+        return Long.toString(Long.parseLong(name.substring(0, at)));
+      } catch (NumberFormatException e) {
+      }
+    return "1";
+  }
+}
@@ -50,12 +50,18 @@ public class AbsolutePath extends Path {
 
   @Override
   public void writeExternal(ObjectOutput out) throws IOException {
-    out.writeObject(path);
+    if (out instanceof PathObjectOutputStream)
+      ((PathObjectOutputStream) out).writePathString(path);
+    else
+      out.writeObject(path);
   }
 
   @Override
   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    path = (String) in.readObject();
+    if (in instanceof PathObjectInputStream)
+      path = ((PathObjectInputStream) in).readPathString();
+    else
+      path = (String) in.readObject();
     if (!acceptable(path))
       throw new IllegalArgumentException("AbsolutePath constructed on unacceptable argument: " + path);
   }
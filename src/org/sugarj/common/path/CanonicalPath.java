@@ -0,0 +1,256 @@
+package org.sugarj.common.path;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.sugarj.common.FileCommands;
+
+/**
+ * Immutable, interned absolute path. Paths are normalized lexically: they are
+ * made absolute against the working directory, use <code>/</code> as
+ * separator, and contain no <code>.</code> or <code>..</code> segments and no
+ * trailing separator. Symbolic links are not resolved.
+ * <p>
+ * There is at most one instance per normalized path, so {@link #equals} and
+ * {@link #hashCode} are pointer comparison and a cached value. The absolute
+ * string, the segments, and the {@link File} and {@link java.nio.file.Path}
+ * views are computed once. Instances are kept alive by their users only;
+ * deserialization returns the interned instance.
+ */
+public final class CanonicalPath extends Path {
+  private static final long serialVersionUID = 4389524637811924816L;
+
+  private static final Map<String, WeakReference<CanonicalPath>> interned = new WeakHashMap<>();
+
+  private String path;
+  private int hash;
+
+  /**
+   * Length of the root, e.g., 1 for <code>/</code> and 3 for
+   * <code>C:/</code>.
+   */
+  private int rootLength;
+  private transient String[] segments;
+  private transient File file;
+  private transient java.nio.file.Path nioPath;
+
+  /**
+   * For externalization only.
+   */
+  public CanonicalPath() { }
+
+  private CanonicalPath(String path, int rootLength) {
+    this.path = path;
+    this.hash = path.hashCode();
+    this.rootLength = rootLength;
+  }
+
+  public static CanonicalPath of(String path) {
+    if (path.isEmpty())
+      throw new IllegalArgumentException("empty path");
+    String p = path.replace(File.separatorChar, '/');
+    int rootLength = rootLength(p);
+    if (rootLength == 0) {
+      p = new File(path).getAbsolutePath().replace(File.separatorChar, '/');
+      rootLength = rootLength(p);
+    }
+    return intern(normalize(p, rootLength), rootLength);
+  }
+
+  public static CanonicalPath of(Path path) {
+    if (path instanceof CanonicalPath)
+      return (CanonicalPath) path;
+    return of(path.getAbsolutePath());
+  }
+
+  public static CanonicalPath of(File file) {
+    return of(file.getPath());
+  }
+
+  public static CanonicalPath of(java.nio.file.Path path) {
+    return of(path.toString());
+  }
+
+  private static CanonicalPath intern(String path, int rootLength) {
+    synchronized (interned) {
+      WeakReference<CanonicalPath> ref = interned.get(path);
+      CanonicalPath p = ref == null ? null : ref.get();
+      if (p == null) {
+        p = new CanonicalPath(path, rootLength);
+        // the path string is the key, so the entry lives as long as the path
+        interned.put(p.path, new WeakReference<>(p));
+      }
+      return p;
+    }
+  }
+
+  /**
+   * @return the length of the root of an absolute path with <code>/</code>
+   *         separators, or 0 for relative paths.
+   */
+  private static int rootLength(String p) {
+    if (p.startsWith("/"))
+      return 1;
+    if (p.length() >= 3 && p.charAt(1) == ':' && p.charAt(2) == '/' && Character.isLetter(p.charAt(0)))
+      return 3;
+    return 0;
+  }
+
+  private static String normalize(String p, int rootLength) {
+    if (p.indexOf("/.", rootLength - 1) < 0 && p.indexOf("//", rootLength) < 0 && !(p.length() > rootLength && p.endsWith("/")))
+      return p;
+
+    List<String> segments = new ArrayList<>();
+    int start = rootLength;
+    while (start <= p.length()) {
+      int end = p.indexOf('/', start);
+      if (end < 0)
+        end = p.length();
+      String segment = p.substring(start, end);
+      if (segment.equals("..")) {
+        if (!segments.isEmpty())
+          segments.remove(segments.size() - 1);
+      }
+      else if (!segment.isEmpty() && !segment.equals("."))
+        segments.add(segment);
+      start = end + 1;
+    }
+
+    StringBuilder b = new StringBuilder(p.length());
+    b.append(p, 0, rootLength);
+    for (int i = 0; i < segments.size(); i++) {
+      if (i > 0)
+        b.append('/');
+      b.append(segments.get(i));
+    }
+    return b.toString();
+  }
+
+  @Override
+  public String getAbsolutePath() {
+    return path;
+  }
+
+  @Override
+  public File getFile() {
+    File f = file;
+    if (f == null)
+      file = f = new File(path);
+    return f;
+  }
+
+  public java.nio.file.Path toNioPath() {
+    java.nio.file.Path p = nioPath;
+    if (p == null)
+      nioPath = p = getFile().toPath();
+    return p;
+  }
+
+  private String[] segments() {
+    String[] s = segments;
+    if (s == null) {
+      s = path.length() == rootLength ? new String[0] : path.substring(rootLength).split("/");
+      segments = s;
+    }
+    return s;
+  }
+
+  public int getSegmentCount() {
+    return segments().length;
+  }
+
+  public String getSegment(int index) {
+    return segments()[index];
+  }
+
+  /**
+   * @return the segments of the path below its root.
+   */
+  public String[] getSegments() {
+    return segments().clone();
+  }
+
+  /**
+   * @return the parent directory, or null for a root.
+   */
+  public CanonicalPath getParent() {
+    if (path.length() == rootLength)
+      return null;
+    int slash = path.lastIndexOf('/');
+    return intern(path.substring(0, Math.max(slash, rootLength)), rootLength);
+  }
+
+  /**
+   * @return the path of the relative path below this one.
+   */
+  public CanonicalPath resolve(String relativePath) {
+    String rel = relativePath.replace(File.separatorChar, '/');
+    if (rootLength(rel) > 0)
+      return of(rel);
+    String p = path.length() == rootLength ? path + rel : path + "/" + rel;
+    return intern(normalize(p, rootLength), rootLength);
+  }
+
+  /**
+   * @return whether this path equals the other or lies below it.
+   */
+  public boolean startsWith(CanonicalPath other) {
+    if (this == other)
+      return true;
+    String o = other.path;
+    return path.startsWith(o) && (o.length() == other.rootLength || (path.length() > o.length() && path.charAt(o.length()) == '/'));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    // canonical paths are interned; other paths compare by string
+    return !(o instanceof CanonicalPath) && super.equals(o);
+  }
+
+  @Override
+  public CanonicalPath replaceExtension(String newExt) {
+    return of(FileCommands.dropExtension(path) + "." + newExt);
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    if (out instanceof PathObjectOutputStream)
+      ((PathObjectOutputStream) out).writePathString(path);
+    else
+      out.writeUTF(path);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    if (in instanceof PathObjectInputStream)
+      path = ((PathObjectInputStream) in).readPathString();
+    else
+      path = in.readUTF();
+    hash = path.hashCode();
+    rootLength = rootLength(path);
+  }
+
+  private Object readResolve() throws ObjectStreamException {
+    return intern(path, rootLength);
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
@@ -29,6 +29,13 @@ public abstract class Path implements Externalizable {
 
   public abstract Path replaceExtension(String newExt);
   
+  /**
+   * @return the interned canonical form of this path.
+   */
+  public CanonicalPath canonical() {
+    return CanonicalPath.of(this);
+  }
+  
   protected String trimFront(String path) {
     while (path.startsWith(File.separator))
       path = path.substring(1, path.length());
@@ -0,0 +1,338 @@
+package org.sugarj.common.path;
+
+import java.io.File;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map from paths to values, stored as a trie of path segments. Besides exact
+ * lookups, it finds the longest key that contains a path (e.g. the source
+ * root of a file) and enumerates all keys below a path, each in time linear
+ * in the number of segments of the path rather than the number of keys.
+ * <p>
+ * Keys can be given as {@link Path}, {@link java.nio.file.Path}, {@link File}
+ * or string; they are compared segment by segment, so <code>/a/b</code>
+ * contains <code>/a/b/c</code> but not <code>/a/bc</code>. Keys are reported
+ * as strings with <code>/</code> separators. Both separators are accepted on
+ * Windows. Paths are not normalized; use {@link CanonicalPath} for that.
+ * Not thread-safe.
+ */
+public class PathMap<V> {
+
+  private static final String ROOT = "/";
+
+  private static final class Node<V> {
+    Map<String, Node<V>> children;
+    String key;
+    V value;
+    boolean present;
+  }
+
+  private final Node<V> root = new Node<>();
+  private int size;
+
+  public V put(Path key, V value) {
+    return put(segments(key), value);
+  }
+
+  public V put(java.nio.file.Path key, V value) {
+    return put(segments(key), value);
+  }
+
+  public V put(File key, V value) {
+    return put(segments(key.getPath()), value);
+  }
+
+  public V put(String key, V value) {
+    return put(segments(key), value);
+  }
+
+  private V put(List<String> segments, V value) {
+    Node<V> node = root;
+    for (String segment : segments) {
+      if (node.children == null)
+        node.children = new HashMap<>(4);
+      Node<V> child = node.children.get(segment);
+      if (child == null) {
+        child = new Node<>();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    V old = node.value;
+    if (!node.present) {
+      node.present = true;
+      node.key = join(segments);
+      size++;
+    }
+    node.value = value;
+    return old;
+  }
+
+  public V get(Path key) {
+    return valueOf(find(segments(key)));
+  }
+
+  public V get(java.nio.file.Path key) {
+    return valueOf(find(segments(key)));
+  }
+
+  public V get(File key) {
+    return valueOf(find(segments(key.getPath())));
+  }
+
+  public V get(String key) {
+    return valueOf(find(segments(key)));
+  }
+
+  public boolean containsKey(Path key) {
+    Node<V> node = find(segments(key));
+    return node != null && node.present;
+  }
+
+  public boolean containsKey(java.nio.file.Path key) {
+    Node<V> node = find(segments(key));
+    return node != null && node.present;
+  }
+
+  public boolean containsKey(String key) {
+    Node<V> node = find(segments(key));
+    return node != null && node.present;
+  }
+
+  public V remove(Path key) {
+    return remove(segments(key));
+  }
+
+  public V remove(java.nio.file.Path key) {
+    return remove(segments(key));
+  }
+
+  public V remove(String key) {
+    return remove(segments(key));
+  }
+
+  private V remove(List<String> segments) {
+    List<Node<V>> trail = new ArrayList<>(segments.size() + 1);
+    Node<V> node = root;
+    trail.add(node);
+    for (String segment : segments) {
+      node = node.children == null ? null : node.children.get(segment);
+      if (node == null)
+        return null;
+      trail.add(node);
+    }
+    if (!node.present)
+      return null;
+
+    V old = node.value;
+    node.present = false;
+    node.value = null;
+    node.key = null;
+    size--;
+
+    // prune nodes that lead to no key
+    for (int i = trail.size() - 1; i > 0; i--) {
+      Node<V> n = trail.get(i);
+      if (n.present || (n.children != null && !n.children.isEmpty()))
+        break;
+      trail.get(i - 1).children.remove(segments.get(i - 1));
+    }
+    return old;
+  }
+
+  /**
+   * @return the entry with the longest key that equals or contains the path,
+   *         or null.
+   */
+  public Map.Entry<String, V> longestPrefix(Path path) {
+    return entryOf(longestPrefix(segments(path)));
+  }
+
+  public Map.Entry<String, V> longestPrefix(java.nio.file.Path path) {
+    return entryOf(longestPrefix(segments(path)));
+  }
+
+  public Map.Entry<String, V> longestPrefix(File path) {
+    return entryOf(longestPrefix(segments(path.getPath())));
+  }
+
+  public Map.Entry<String, V> longestPrefix(String path) {
+    return entryOf(longestPrefix(segments(path)));
+  }
+
+  /**
+   * @return the value of the longest key that equals or contains the path, or
+   *         null.
+   */
+  public V longestPrefixValue(Path path) {
+    return valueOf(longestPrefix(segments(path)));
+  }
+
+  public V longestPrefixValue(java.nio.file.Path path) {
+    return valueOf(longestPrefix(segments(path)));
+  }
+
+  /**
+   * @return whether some key equals or contains the path.
+   */
+  public boolean containsPrefixOf(Path path) {
+    return longestPrefix(segments(path)) != null;
+  }
+
+  public boolean containsPrefixOf(java.nio.file.Path path) {
+    return longestPrefix(segments(path)) != null;
+  }
+
+  private Node<V> longestPrefix(List<String> segments) {
+    Node<V> node = root;
+    Node<V> found = root.present ? root : null;
+    for (String segment : segments) {
+      node = node.children == null ? null : node.children.get(segment);
+      if (node == null)
+        break;
+      if (node.present)
+        found = node;
+    }
+    return found;
+  }
+
+  /**
+   * @return the entries whose keys equal or lie below the path.
+   */
+  public List<Map.Entry<String, V>> entriesBelow(Path path) {
+    return entriesBelow(find(segments(path)));
+  }
+
+  public List<Map.Entry<String, V>> entriesBelow(java.nio.file.Path path) {
+    return entriesBelow(find(segments(path)));
+  }
+
+  public List<Map.Entry<String, V>> entriesBelow(String path) {
+    return entriesBelow(find(segments(path)));
+  }
+
+  /**
+   * @return whether some key equals or lies below the path.
+   */
+  public boolean containsKeyBelow(Path path) {
+    return find(segments(path)) != null;
+  }
+
+  public boolean containsKeyBelow(java.nio.file.Path path) {
+    return find(segments(path)) != null;
+  }
+
+  private List<Map.Entry<String, V>> entriesBelow(Node<V> node) {
+    List<Map.Entry<String, V>> entries = new ArrayList<>();
+    if (node != null)
+      collect(node, entries);
+    return entries;
+  }
+
+  private static <V> void collect(Node<V> node, List<Map.Entry<String, V>> entries) {
+    if (node.present)
+      entries.add(new SimpleImmutableEntry<>(node.key, node.value));
+    if (node.children != null)
+      for (Node<V> child : node.children.values())
+        collect(child, entries);
+  }
+
+  /**
+   * @return all entries.
+   */
+  public List<Map.Entry<String, V>> entries() {
+    return entriesBelow(root);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    root.children = null;
+    root.present = false;
+    root.value = null;
+    root.key = null;
+    size = 0;
+  }
+
+  /**
+   * @return the node of the path, which may be a prefix of keys without being
+   *         one; or null.
+   */
+  private Node<V> find(List<String> segments) {
+    Node<V> node = root;
+    for (String segment : segments) {
+      node = node.children == null ? null : node.children.get(segment);
+      if (node == null)
+        return null;
+    }
+    return node;
+  }
+
+  private static <V> V valueOf(Node<V> node) {
+    return node == null ? null : node.value;
+  }
+
+  private static <V> Map.Entry<String, V> entryOf(Node<V> node) {
+    return node == null ? null : new SimpleImmutableEntry<>(node.key, node.value);
+  }
+
+  private static List<String> segments(Path path) {
+    return segments(path.getAbsolutePath());
+  }
+
+  /**
+   * Splits a path string at both separators. An absolute path starts with the
+   * root segment <code>/</code>.
+   */
+  static List<String> segments(String path) {
+    List<String> segments = new ArrayList<>();
+    int len = path.length();
+    int start = 0;
+    if (len > 0 && isSeparator(path.charAt(0))) {
+      segments.add(ROOT);
+      start = 1;
+    }
+    for (int i = start; i <= len; i++)
+      if (i == len || isSeparator(path.charAt(i))) {
+        if (i > start)
+          segments.add(path.substring(start, i));
+        start = i + 1;
+      }
+    return segments;
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == '/' || c == File.separatorChar;
+  }
+
+  static List<String> segments(java.nio.file.Path path) {
+    List<String> segments = new ArrayList<>(path.getNameCount() + 1);
+    java.nio.file.Path root = path.getRoot();
+    if (root != null)
+      // "/" stays the root segment, "C:\" becomes "C:" as in strings
+      segments.addAll(segments(root.toString()));
+    for (int i = 0; i < path.getNameCount(); i++)
+      segments.add(path.getName(i).toString());
+    return segments;
+  }
+
+  private static String join(List<String> segments) {
+    StringBuilder b = new StringBuilder();
+    for (String segment : segments) {
+      if (b.length() > 0 && b.charAt(b.length() - 1) != '/')
+        b.append('/');
+      b.append(segment);
+    }
+    return b.toString();
+  }
+}
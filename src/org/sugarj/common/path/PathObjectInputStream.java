@@ -0,0 +1,82 @@
+package org.sugarj.common.path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads streams written by a {@link PathObjectOutputStream}.
+ */
+public class PathObjectInputStream extends ObjectInputStream {
+
+  private final List<String> strings = new ArrayList<>();
+  private final List<Path> bases = new ArrayList<>();
+
+  public PathObjectInputStream(InputStream in) throws IOException {
+    super(in);
+  }
+
+  String readPathString() throws IOException {
+    int tag = readVarint();
+    String s;
+    if (tag == PathObjectOutputStream.STRING_ROOT)
+      s = readString();
+    else if (tag == PathObjectOutputStream.STRING_CHILD) {
+      String parent = readPathString();
+      s = parent + "/" + readString();
+    }
+    else {
+      int id = tag - PathObjectOutputStream.STRING_REFERENCE;
+      if (id >= strings.size())
+        throw new StreamCorruptedException("invalid path string reference " + id);
+      return strings.get(id);
+    }
+    strings.add(s);
+    return s;
+  }
+
+  Path readBasePath() throws IOException, ClassNotFoundException {
+    int tag = readVarint();
+    Path base;
+    switch (tag) {
+    case PathObjectOutputStream.BASE_NULL:
+      return null;
+    case PathObjectOutputStream.BASE_OBJECT:
+      return (Path) readObject();
+    case PathObjectOutputStream.BASE_ABSOLUTE:
+      base = new AbsolutePath(readPathString());
+      break;
+    case PathObjectOutputStream.BASE_CANONICAL:
+      base = CanonicalPath.of(readPathString());
+      break;
+    default:
+      int id = tag - PathObjectOutputStream.BASE_REFERENCE;
+      if (id >= bases.size())
+        throw new StreamCorruptedException("invalid base path reference " + id);
+      return bases.get(id);
+    }
+    bases.add(base);
+    return base;
+  }
+
+  private String readString() throws IOException {
+    byte[] bytes = new byte[readVarint()];
+    readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private int readVarint() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new StreamCorruptedException("malformed varint");
+  }
+}
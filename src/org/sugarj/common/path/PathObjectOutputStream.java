@@ -0,0 +1,112 @@
+package org.sugarj.common.path;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Object stream that encodes {@link Path} objects compactly. Each path
+ * string is written as a reference to its parent directory plus its last
+ * segment, and every directory, path string and immutable base path is
+ * written only once per stream; repetitions are varint references to the
+ * first occurrence. Streams must be read by a {@link PathObjectInputStream};
+ * paths in ordinary object streams keep their previous encoding.
+ */
+public class PathObjectOutputStream extends ObjectOutputStream {
+
+  static final int BASE_NULL = 0;
+  static final int BASE_ABSOLUTE = 1;
+  static final int BASE_CANONICAL = 2;
+  static final int BASE_OBJECT = 3;
+  static final int BASE_REFERENCE = 4;
+
+  static final int STRING_ROOT = 0;
+  static final int STRING_CHILD = 1;
+  static final int STRING_REFERENCE = 2;
+
+  private final Map<String, Integer> strings = new HashMap<>();
+  private final Map<String, Integer> absoluteBases = new HashMap<>();
+  private final Map<String, Integer> canonicalBases = new HashMap<>();
+  private int bases;
+
+  public PathObjectOutputStream(OutputStream out) throws IOException {
+    super(out);
+  }
+
+  /**
+   * Writes a path string as its parent directory and last segment.
+   */
+  void writePathString(String s) throws IOException {
+    Integer id = strings.get(s);
+    if (id != null) {
+      writeVarint(STRING_REFERENCE + id);
+      return;
+    }
+
+    int slash = s.lastIndexOf('/');
+    if (slash < 0) {
+      writeVarint(STRING_ROOT);
+      writeString(s);
+    }
+    else {
+      writeVarint(STRING_CHILD);
+      writePathString(s.substring(0, slash));
+      writeString(s.substring(slash + 1));
+    }
+    strings.put(s, strings.size());
+  }
+
+  /**
+   * Writes the base of a relative path. Absolute and canonical bases are
+   * immutable and shared by value, other bases by identity.
+   */
+  void writeBasePath(Path base) throws IOException {
+    Map<String, Integer> table;
+    int tag;
+    if (base == null) {
+      writeVarint(BASE_NULL);
+      return;
+    }
+    else if (base.getClass() == AbsolutePath.class) {
+      table = absoluteBases;
+      tag = BASE_ABSOLUTE;
+    }
+    else if (base.getClass() == CanonicalPath.class) {
+      table = canonicalBases;
+      tag = BASE_CANONICAL;
+    }
+    else {
+      writeVarint(BASE_OBJECT);
+      // the object stream shares identical objects
+      writeObject(base);
+      return;
+    }
+
+    String path = base.getAbsolutePath();
+    Integer id = table.get(path);
+    if (id != null) {
+      writeVarint(BASE_REFERENCE + id);
+      return;
+    }
+    writeVarint(tag);
+    writePathString(path);
+    table.put(path, bases++);
+  }
+
+  private void writeString(String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(bytes.length);
+    write(bytes);
+  }
+
+  private void writeVarint(int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    write(value);
+  }
+}
@@ -0,0 +1,106 @@
+package org.sugarj.common.path;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of paths backed by a {@link PathMap}, for finding which member of the
+ * set contains a path, e.g. which source root contains a file.
+ */
+public class PathSet {
+
+  private final PathMap<Boolean> map = new PathMap<>();
+
+  public PathSet() {
+  }
+
+  public PathSet(Iterable<? extends Path> paths) {
+    for (Path p : paths)
+      add(p);
+  }
+
+  public boolean add(Path path) {
+    return map.put(path, Boolean.TRUE) == null;
+  }
+
+  public boolean add(java.nio.file.Path path) {
+    return map.put(path, Boolean.TRUE) == null;
+  }
+
+  public boolean add(String path) {
+    return map.put(path, Boolean.TRUE) == null;
+  }
+
+  public boolean remove(Path path) {
+    return map.remove(path) != null;
+  }
+
+  public boolean remove(java.nio.file.Path path) {
+    return map.remove(path) != null;
+  }
+
+  public boolean contains(Path path) {
+    return map.containsKey(path);
+  }
+
+  public boolean contains(java.nio.file.Path path) {
+    return map.containsKey(path);
+  }
+
+  /**
+   * @return the longest member that equals or contains the path, or null.
+   */
+  public String longestPrefix(Path path) {
+    return key(map.longestPrefix(path));
+  }
+
+  public String longestPrefix(java.nio.file.Path path) {
+    return key(map.longestPrefix(path));
+  }
+
+  /**
+   * @return whether some member equals or contains the path.
+   */
+  public boolean containsPrefixOf(Path path) {
+    return map.containsPrefixOf(path);
+  }
+
+  public boolean containsPrefixOf(java.nio.file.Path path) {
+    return map.containsPrefixOf(path);
+  }
+
+  /**
+   * @return the members that equal or lie below the path.
+   */
+  public List<String> below(Path path) {
+    return keys(map.entriesBelow(path));
+  }
+
+  public List<String> below(java.nio.file.Path path) {
+    return keys(map.entriesBelow(path));
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  private static String key(Map.Entry<String, Boolean> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  private static List<String> keys(List<Map.Entry<String, Boolean>> entries) {
+    List<String> keys = new ArrayList<>(entries.size());
+    for (Map.Entry<String, Boolean> e : entries)
+      keys.add(e.getKey());
+    return keys;
+  }
+}
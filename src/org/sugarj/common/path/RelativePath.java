@@ -14,6 +14,22 @@ import org.sugarj.common.FileCommands;
 public class RelativePath extends Path {
   private String relativePath;
   private Path base;
+  
+  /**
+   * The absolute path computed for a base path string, which is reused as
+   * long as the base returns the same string instance.
+   */
+  private static final class Absolute {
+    final String base;
+    final String absolute;
+
+    Absolute(String base, String absolute) {
+      this.base = base;
+      this.absolute = absolute;
+    }
+  }
+
+  private transient Absolute cachedAbsolute;
     
   /**
    *  For externalization only.
@@ -48,18 +64,36 @@ public class RelativePath extends Path {
   public String getAbsolutePath() {
     if (getBasePath() == null)
       throw new IllegalStateException("Base of relative path is still open; cannot construct absolute path yet.");
-      
-    return getBasePath() + File.separator + getRelativePath();
+    
+    String base = getBasePath().toString();
+    Absolute cached = cachedAbsolute;
+    if (cached == null || cached.base != base) {
+      cached = new Absolute(base, base + File.separator + getRelativePath());
+      cachedAbsolute = cached;
+    }
+    return cached.absolute;
   }
 
   @Override
   public void writeExternal(ObjectOutput out) throws IOException {
+    if (out instanceof PathObjectOutputStream) {
+      PathObjectOutputStream paths = (PathObjectOutputStream) out;
+      paths.writeBasePath(base);
+      paths.writePathString(relativePath);
+      return;
+    }
     out.writeObject(base);
     out.writeObject(relativePath);
   }
 
   @Override
   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    if (in instanceof PathObjectInputStream) {
+      PathObjectInputStream paths = (PathObjectInputStream) in;
+      base = paths.readBasePath();
+      relativePath = paths.readPathString();
+      return;
+    }
     base = (Path) in.readObject();
     relativePath = (String) in.readObject();
   }
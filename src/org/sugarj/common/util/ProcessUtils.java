@@ -0,0 +1,392 @@
+package org.sugarj.common.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Access to process handling of newer Java versions (process ids, process
+ * trees, forcible termination) while still running on Java 7. Where the
+ * running JVM lacks an API, the methods fall back to what
+ * {@link Process} offers.
+ */
+public class ProcessUtils {
+
+  private static final Method PID;
+  private static final Method TO_HANDLE;
+  private static final Method DESCENDANTS;
+  private static final Method HANDLE_DESTROY;
+  private static final Method HANDLE_DESTROY_FORCIBLY;
+  private static final Method ITERATOR;
+  private static final Method DESTROY_FORCIBLY;
+  private static final Method HANDLE_INFO;
+  private static final Method INFO_TOTAL_CPU_DURATION;
+  private static final Method OPTIONAL_IS_PRESENT;
+  private static final Method OPTIONAL_GET;
+  private static final Method DURATION_TO_NANOS;
+  private static final Method START_PIPELINE;
+
+  /**
+   * Clock ticks per second used by /proc/[pid]/stat. Linux reports
+   * USER_HZ, which is 100 on all mainstream architectures.
+   */
+  private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+  static {
+    PID = method(Process.class, "pid");
+    TO_HANDLE = method(Process.class, "toHandle");
+    DESTROY_FORCIBLY = method(Process.class, "destroyForcibly");
+
+    Class<?> handle = classForName("java.lang.ProcessHandle");
+    DESCENDANTS = handle == null ? null : method(handle, "descendants");
+    HANDLE_DESTROY = handle == null ? null : method(handle, "destroy");
+    HANDLE_DESTROY_FORCIBLY = handle == null ? null : method(handle, "destroyForcibly");
+    HANDLE_INFO = handle == null ? null : method(handle, "info");
+
+    Class<?> info = classForName("java.lang.ProcessHandle$Info");
+    INFO_TOTAL_CPU_DURATION = info == null ? null : method(info, "totalCpuDuration");
+    Class<?> optional = classForName("java.util.Optional");
+    OPTIONAL_IS_PRESENT = optional == null ? null : method(optional, "isPresent");
+    OPTIONAL_GET = optional == null ? null : method(optional, "get");
+    Class<?> duration = classForName("java.time.Duration");
+    DURATION_TO_NANOS = duration == null ? null : method(duration, "toNanos");
+
+    Method startPipeline;
+    try {
+      startPipeline = ProcessBuilder.class.getMethod("startPipeline", List.class);
+    } catch (NoSuchMethodException | SecurityException e) {
+      startPipeline = null;
+    }
+    START_PIPELINE = startPipeline;
+
+    Class<?> stream = classForName("java.util.stream.BaseStream");
+    ITERATOR = stream == null ? null : method(stream, "iterator");
+  }
+
+  private static Class<?> classForName(String name) {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static Method method(Class<?> cl, String name) {
+    try {
+      return cl.getMethod(name);
+    } catch (NoSuchMethodException | SecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true iff processes can be started as a pipeline whose stages are
+   *         connected by operating-system pipes.
+   */
+  public static boolean supportsPipelines() {
+    return START_PIPELINE != null;
+  }
+
+  /**
+   * Starts the processes such that the standard output of each process is
+   * connected to the standard input of the next one by an operating-system
+   * pipe (ProcessBuilder.startPipeline of Java 9).
+   *
+   * @return the started processes, or null if the running JVM does not
+   *         support pipelines.
+   */
+  @SuppressWarnings("unchecked")
+  public static List<Process> startPipeline(List<ProcessBuilder> builders) throws IOException {
+    if (START_PIPELINE == null)
+      return null;
+    try {
+      return (List<Process>) START_PIPELINE.invoke(null, builders);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IOException(e.getCause());
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the operating-system id of the process or -1 if it cannot be
+   *         determined.
+   */
+  public static long pid(Process p) {
+    if (PID != null)
+      try {
+        return ((Number) PID.invoke(p)).longValue();
+      } catch (Exception e) {
+        return -1;
+      }
+
+    // UNIXProcess of Java 7 and 8
+    try {
+      Field f = p.getClass().getDeclaredField("pid");
+      f.setAccessible(true);
+      return f.getInt(p);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return true iff descendants of a process can be terminated together with
+   *         the process itself.
+   */
+  public static boolean supportsProcessTrees() {
+    return TO_HANDLE != null && DESCENDANTS != null && ITERATOR != null;
+  }
+
+  /**
+   * Terminates the process and, where supported, all of its descendants.
+   * Descendants are collected before the process is terminated because they
+   * are reparented once their parent died.
+   *
+   * @param forcibly
+   *        whether to terminate immediately (SIGKILL) instead of asking the
+   *        processes to terminate (SIGTERM).
+   */
+  public static void destroyTree(Process p, boolean forcibly) {
+    List<Object> descendants = descendants(p);
+
+    if (forcibly && DESTROY_FORCIBLY != null)
+      try {
+        DESTROY_FORCIBLY.invoke(p);
+      } catch (Exception e) {
+        p.destroy();
+      }
+    else
+      p.destroy();
+
+    Method destroy = forcibly ? HANDLE_DESTROY_FORCIBLY : HANDLE_DESTROY;
+    for (Object handle : descendants)
+      try {
+        destroy.invoke(handle);
+      } catch (Exception e) {
+        // process terminated already or cannot be terminated by us
+      }
+  }
+
+  private static List<Object> descendants(Process p) {
+    if (!supportsProcessTrees())
+      return Collections.emptyList();
+
+    try {
+      Object handle = TO_HANDLE.invoke(p);
+      Object stream = DESCENDANTS.invoke(handle);
+      Iterator<?> it = (Iterator<?>) ITERATOR.invoke(stream);
+      List<Object> result = new ArrayList<>();
+      while (it.hasNext())
+        result.add(it.next());
+      return result;
+    } catch (Exception e) {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Reads the current resident set size of a process from
+   * {@code /proc/<pid>/status}.
+   *
+   * @return the resident set size in bytes, or -1 if it is not available
+   *         (non-Linux systems, unknown pid, terminated process).
+   */
+  public static long residentSetSize(long pid) {
+    return procStatusBytes(pid, "VmRSS:");
+  }
+
+  /**
+   * Reads the peak resident set size of a process from
+   * {@code /proc/<pid>/status}.
+   *
+   * @return the peak resident set size in bytes, or -1 if it is not
+   *         available.
+   */
+  public static long peakResidentSetSize(long pid) {
+    return procStatusBytes(pid, "VmHWM:");
+  }
+
+  /**
+   * Reads the CPU time of a process and its waited-for children from
+   * {@code /proc/<pid>/stat}.
+   *
+   * @return user and system CPU time in nanoseconds, or null if they are not
+   *         available.
+   */
+  public static long[] cpuTimes(long pid) {
+    if (pid < 0)
+      return null;
+    File stat = new File("/proc/" + pid + "/stat");
+    if (!stat.canRead())
+      return null;
+    try (BufferedReader reader = new BufferedReader(new FileReader(stat))) {
+      String line = reader.readLine();
+      if (line == null)
+        return null;
+      // the command name in parentheses may contain spaces
+      String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+      // fields[0] is field 3 (state); utime, stime, cutime, cstime are fields 14-17
+      long user = Long.parseLong(fields[11]) + Long.parseLong(fields[13]);
+      long system = Long.parseLong(fields[12]) + Long.parseLong(fields[14]);
+      long nanosPerTick = 1000000000L / CLOCK_TICKS_PER_SECOND;
+      return new long[] {user * nanosPerTick, system * nanosPerTick};
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the total CPU time of a process through ProcessHandle on Java 9 and
+   * later.
+   *
+   * @return the CPU time in nanoseconds, or -1 if it is not available.
+   */
+  public static long totalCpuTime(Process p) {
+    if (TO_HANDLE == null || HANDLE_INFO == null || INFO_TOTAL_CPU_DURATION == null || OPTIONAL_IS_PRESENT == null || DURATION_TO_NANOS == null)
+      return -1;
+    try {
+      Object info = HANDLE_INFO.invoke(TO_HANDLE.invoke(p));
+      Object duration = INFO_TOTAL_CPU_DURATION.invoke(info);
+      if (!(Boolean) OPTIONAL_IS_PRESENT.invoke(duration))
+        return -1;
+      return (Long) DURATION_TO_NANOS.invoke(OPTIONAL_GET.invoke(duration));
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the system load average of the last minute, or a negative value
+   *         if it is not available.
+   */
+  public static double loadAverage() {
+    File loadavg = new File("/proc/loadavg");
+    if (loadavg.canRead())
+      try (BufferedReader reader = new BufferedReader(new FileReader(loadavg))) {
+        String line = reader.readLine();
+        if (line != null)
+          return Double.parseDouble(line.split(" ")[0]);
+      } catch (IOException | RuntimeException e) {
+      }
+    return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+  }
+
+  /**
+   * Reads the total and the available memory from {@code /proc/meminfo}.
+   *
+   * @return total and available memory in bytes, or null if they are not
+   *         available.
+   */
+  public static long[] memoryInfo() {
+    File meminfo = new File("/proc/meminfo");
+    if (!meminfo.canRead())
+      return null;
+    long total = -1;
+    long available = -1;
+    try (BufferedReader reader = new BufferedReader(new FileReader(meminfo))) {
+      String line;
+      while ((line = reader.readLine()) != null && (total < 0 || available < 0))
+        if (line.startsWith("MemTotal:"))
+          total = meminfoBytes(line);
+        else if (line.startsWith("MemAvailable:"))
+          available = meminfoBytes(line);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+    if (total < 0 || available < 0)
+      return null;
+    return new long[] {total, available};
+  }
+
+  private static long meminfoBytes(String line) {
+    String[] parts = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+    return Long.parseLong(parts[0]) * 1024;
+  }
+
+  /**
+   * Reads how long runnable tasks had to wait for a CPU, summed since boot.
+   * Uses CPU pressure stall information ({@code /proc/pressure/cpu}), which
+   * counts the time at least one task was waiting, or else the per-CPU run
+   * delays of {@code /proc/schedstat} divided by the number of CPUs.
+   *
+   * @return the accumulated delay in nanoseconds, or -1 if it is not
+   *         available.
+   */
+  public static long runQueueDelayNanos() {
+    File pressure = new File("/proc/pressure/cpu");
+    if (pressure.canRead())
+      try (BufferedReader reader = new BufferedReader(new FileReader(pressure))) {
+        String line = reader.readLine();
+        if (line != null && line.startsWith("some "))
+          for (String field : line.split(" "))
+            if (field.startsWith("total="))
+              return Long.parseLong(field.substring("total=".length())) * 1000;
+      } catch (IOException | RuntimeException e) {
+      }
+
+    File schedstat = new File("/proc/schedstat");
+    if (schedstat.canRead())
+      try (BufferedReader reader = new BufferedReader(new FileReader(schedstat))) {
+        long delay = 0;
+        int cpus = 0;
+        String line;
+        while ((line = reader.readLine()) != null)
+          if (line.startsWith("cpu")) {
+            // cpu<N> followed by 9 counters, the 8th is the run delay in ns
+            String[] fields = line.split(" ");
+            delay += Long.parseLong(fields[8]);
+            cpus++;
+          }
+        if (cpus > 0)
+          return delay / cpus;
+      } catch (IOException | RuntimeException e) {
+      }
+    return -1;
+  }
+
+  private static long procStatusBytes(long pid, String field) {
+    if (pid < 0)
+      return -1;
+    File status = new File("/proc/" + pid + "/status");
+    if (!status.canRead())
+      return -1;
+    try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        if (line.startsWith(field)) {
+          String[] parts = line.substring(field.length()).trim().split("\\s+");
+          long kb = Long.parseLong(parts[0]);
+          return kb * 1024;
+        }
+    } catch (IOException | NumberFormatException e) {
+      // process terminated while reading
+    }
+    return -1;
+  }
+
+  /**
+   * @return true iff the process has terminated.
+   */
+  public static boolean hasExited(Process p) {
+    try {
+      p.exitValue();
+      return true;
+    } catch (IllegalThreadStateException e) {
+      return false;
+    }
+  }
+}